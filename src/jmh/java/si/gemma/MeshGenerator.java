@@ -0,0 +1,183 @@
+package si.gemma;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import si.gemma.ToCoS.Obj3d;
+
+// Watertight, consistently oriented meshes for the benchmarks.
+public class MeshGenerator {
+
+  // Generates a mesh of the given shape with about the given number of triangles. Only the fan
+  // has vertices of the given valence, the other shapes have none above 6.
+  public static Obj3d generate(String shape, int triangles, int valence) {
+    switch (shape) {
+      case "icosphere":
+        int level = 0;
+        while (20 << (2 * level) < triangles) {
+          level++;
+        }
+        return icosphere(level);
+      case "torus":
+        int n = Math.max(3, (int) Math.round(Math.sqrt(triangles / 2.0)));
+        return torus(n, n);
+      case "fan":
+        int valences = Math.max(3, valence);
+        return fan(valences, Math.max(1, triangles / (2 * valences)));
+      default:
+        throw new IllegalArgumentException("Unknown shape: " + shape);
+    }
+  }
+
+  // Subdivided icosahedron on the unit sphere, 20 * 4^level triangles.
+  public static Obj3d icosphere(int level) {
+    Obj3d obj = new Obj3d();
+    float t = (float) ((1 + Math.sqrt(5)) / 2);
+
+    float[][] corners = {
+      {-1, t, 0}, {1, t, 0}, {-1, -t, 0}, {1, -t, 0},
+      {0, -1, t}, {0, 1, t}, {0, -1, -t}, {0, 1, -t},
+      {t, 0, -1}, {t, 0, 1}, {-t, 0, -1}, {-t, 0, 1}
+    };
+
+    for (float[] c : corners) {
+      addUnitVertex(obj, c[0], c[1], c[2]);
+    }
+
+    int[] faces = {
+      0, 11, 5, 0, 5, 1, 0, 1, 7, 0, 7, 10, 0, 10, 11,
+      1, 5, 9, 5, 11, 4, 11, 10, 2, 10, 7, 6, 7, 1, 8,
+      3, 9, 4, 3, 4, 2, 3, 2, 6, 3, 6, 8, 3, 8, 9,
+      4, 9, 5, 2, 4, 11, 6, 2, 10, 8, 6, 7, 9, 8, 1
+    };
+
+    for (int l = 0; l < level; l++) {
+      Map<Long, Integer> midpoints = new HashMap<>();
+      int[] next = new int[faces.length * 4];
+
+      for (int f = 0; f < faces.length; f += 3) {
+        int a = faces[f];
+        int b = faces[f + 1];
+        int c = faces[f + 2];
+        int ab = midpoint(obj, midpoints, a, b);
+        int bc = midpoint(obj, midpoints, b, c);
+        int ca = midpoint(obj, midpoints, c, a);
+
+        int[] split = {a, ab, ca, b, bc, ab, c, ca, bc, ab, bc, ca};
+        System.arraycopy(split, 0, next, f * 4, split.length);
+      }
+
+      faces = next;
+    }
+
+    for (int f = 0; f < faces.length; f += 3) {
+      obj.addFace(faces[f], faces[f + 1], faces[f + 2]);
+    }
+
+    return obj;
+  }
+
+  // Torus of rings x segments quads, each split in two triangles.
+  public static Obj3d torus(int rings, int segments) {
+    Obj3d obj = new Obj3d();
+
+    for (int i = 0; i < rings; i++) {
+      double u = 2 * Math.PI * i / rings;
+
+      for (int j = 0; j < segments; j++) {
+        double v = 2 * Math.PI * j / segments;
+        double r = 1 + 0.3 * Math.cos(v);
+
+        obj.addVertex(
+            (float) (r * Math.cos(u)), (float) (r * Math.sin(u)), (float) (0.3 * Math.sin(v)));
+      }
+    }
+
+    for (int i = 0; i < rings; i++) {
+      for (int j = 0; j < segments; j++) {
+        int a = i * segments + j;
+        int b = ((i + 1) % rings) * segments + j;
+        int c = ((i + 1) % rings) * segments + (j + 1) % segments;
+        int d = i * segments + (j + 1) % segments;
+
+        obj.addFace(a, b, c);
+        obj.addFace(a, c, d);
+      }
+    }
+
+    return obj;
+  }
+
+  // Spindle: two apexes of the given valence joined by rings of as many vertices, 2 * valence *
+  // rings triangles. A single ring makes a double cone.
+  public static Obj3d fan(int valence, int rings) {
+    Obj3d obj = new Obj3d();
+
+    obj.addVertex(0, 0, 1);
+    obj.addVertex(0, 0, -1);
+
+    for (int r = 0; r < rings; r++) {
+      double z = rings == 1 ? 0 : 0.8 - 1.6 * r / (rings - 1);
+      double radius = Math.sqrt(1 - z * z);
+
+      for (int i = 0; i < valence; i++) {
+        double a = 2 * Math.PI * i / valence;
+        obj.addVertex((float) (radius * Math.cos(a)), (float) (radius * Math.sin(a)), (float) z);
+      }
+    }
+
+    for (int i = 0; i < valence; i++) {
+      int a = 2 + i;
+      int b = 2 + (i + 1) % valence;
+      int last = 2 + (rings - 1) * valence;
+
+      obj.addFace(0, a, b);
+      obj.addFace(1, last + (i + 1) % valence, last + i);
+
+      // Quads between the rings, each split in two triangles.
+      for (int r = 0; r + 1 < rings; r++) {
+        int c = a + r * valence;
+        int d = b + r * valence;
+
+        obj.addFace(c, c + valence, d + valence);
+        obj.addFace(c, d + valence, d);
+      }
+    }
+
+    return obj;
+  }
+
+  // The same mesh with three own vertices per triangle, as STL stores it.
+  public static Obj3d soup(Obj3d obj) {
+    Obj3d soup = new Obj3d();
+
+    for (int f = 0; f < obj.getNumFaces(); f++) {
+      for (int k = 0; k < 3; k++) {
+        soup.addVertex(obj.getVertex(obj.getVertexIndex(f, k)));
+      }
+      soup.addFace(f * 3, f * 3 + 1, f * 3 + 2);
+    }
+
+    return soup;
+  }
+
+  private static int midpoint(Obj3d obj, Map<Long, Integer> midpoints, int a, int b) {
+    long key = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+
+    return midpoints.computeIfAbsent(
+        key,
+        k -> {
+          addUnitVertex(
+              obj,
+              (obj.getVertex(a).x + obj.getVertex(b).x) / 2,
+              (obj.getVertex(a).y + obj.getVertex(b).y) / 2,
+              (obj.getVertex(a).z + obj.getVertex(b).z) / 2);
+          return obj.getNumVertices() - 1;
+        });
+  }
+
+  private static void addUnitVertex(Obj3d obj, float x, float y, float z) {
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    obj.addVertex(x / length, y / length, z / length);
+  }
+}
@@ -0,0 +1,172 @@
+package si.gemma;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import si.gemma.ToCoS.CoToSFile;
+import si.gemma.ToCoS.Obj3d;
+import si.gemma.ToCoS.Options;
+import si.gemma.ToCoS.ScratchPool;
+import si.gemma.ToCoS.Stats;
+import si.gemma.ToCoS.TBin;
+
+// Run with -prof gc for the allocation rate. The compress benchmark reports the compression
+// ratios as secondary results.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtocos.quiet=true")
+public class ToCoSBenchmark {
+
+  @Param({"icosphere", "torus", "fan"})
+  public String shape;
+
+  @Param({"20000", "320000"})
+  public int triangles;
+
+  // Valence of the apexes of the fan, the other shapes ignore it: -p valence=16 skips the
+  // repeated runs of those.
+  @Param({"16", "4096"})
+  public int valence;
+
+  private Obj3d mesh;
+  private List<Obj3d> meshes;
+  private Obj3d decimated;
+  private List<Obj3d> decimatedMeshes;
+
+  // Shared like the pool of an engine, so repeated calls reuse the scratch arrays.
+  private final ScratchPool scratch = new ScratchPool();
+
+  private File dir;
+  private File tbin;
+  private File cotos;
+  private File obj;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    mesh = MeshGenerator.generate(shape, triangles, valence);
+    meshes = Collections.singletonList(mesh);
+    decimatedMeshes = ToCoS.decimate(meshes, shape, Options.DEFAULT, scratch, new Stats(shape));
+    decimated = decimatedMeshes.get(0);
+
+    dir = Files.createTempDirectory("tocos-bench").toFile();
+    tbin = new File(dir, "decimated.tbin");
+    cotos = new File(dir, "mesh.obj.CoToS");
+    obj = new File(dir, "mesh.obj");
+
+    TBin.write(decimated, tbin);
+    CoToSFile.write(decimatedMeshes, cotos, Options.DEFAULT);
+    Obj3d.saveAs(meshes, "obj", obj);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @State(Scope.Thread)
+  public static class Soup {
+    private Obj3d soup;
+
+    // A fresh soup for every weld, welding changes it in place.
+    @Setup(Level.Invocation)
+    public void setUp(ToCoSBenchmark benchmark) {
+      soup = MeshGenerator.soup(benchmark.mesh);
+    }
+  }
+
+  // Set by the compress benchmark, JMH reports them next to its time. The byte ratio compares the
+  // .CoToS data to the raw floats and ints of the vertices and triangles.
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Ratios {
+    public double triangleRatio;
+    public double byteRatio;
+  }
+
+  @Benchmark
+  public int compress(Ratios ratios) throws IOException {
+    List<Obj3d> kept = ToCoS.decimate(meshes, shape, Options.DEFAULT, scratch, new Stats(shape));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    CoToSFile.write(kept, out, Options.DEFAULT);
+
+    ratios.triangleRatio = (double) kept.get(0).getNumFaces() / mesh.getNumFaces();
+    ratios.byteRatio = (double) out.size() / ((mesh.getNumVertices() + mesh.getNumFaces()) * 12L);
+    return out.size();
+  }
+
+  @Benchmark
+  public List<Obj3d> decimate() throws IOException {
+    return ToCoS.decimate(meshes, shape, Options.DEFAULT, scratch, new Stats(shape));
+  }
+
+  @Benchmark
+  public Obj3d reconstruct() throws IOException {
+    return ToCoS.opt2full(decimated, Options.DEFAULT, scratch, new Stats(shape));
+  }
+
+  @Benchmark
+  public Obj3d weld(Soup soup) {
+    soup.soup.weld(true);
+    return soup.soup;
+  }
+
+  @Benchmark
+  public File writeTbin() throws IOException {
+    TBin.write(decimated, tbin);
+    return tbin;
+  }
+
+  @Benchmark
+  public Obj3d readTbin() throws IOException {
+    return TBin.read(tbin);
+  }
+
+  @Benchmark
+  public File writeCoToS() throws IOException {
+    CoToSFile.write(decimatedMeshes, cotos, Options.DEFAULT);
+    return cotos;
+  }
+
+  @Benchmark
+  public List<Obj3d> readCoToS() throws IOException {
+    return CoToSFile.read(cotos);
+  }
+
+  @Benchmark
+  public File exportAssimp() throws IOException {
+    Obj3d.saveAs(meshes, "obj", obj);
+    return obj;
+  }
+
+  @Benchmark
+  public List<Obj3d> importAssimp() throws IOException {
+    return Obj3d.readMeshes(obj, Options.DEFAULT, new Stats(shape));
+  }
+}
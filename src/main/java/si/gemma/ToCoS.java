@@ -1,5 +1,11 @@
 package si.gemma;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -7,726 +13,4206 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.joml.Vector3f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIExportDataBlob;
 import org.lwjgl.assimp.AIExportFormatDesc;
 import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMatrix4x4;
+import org.lwjgl.assimp.AIMaterial;
 import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AINode;
 import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.assimp.Assimp;
-
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjWriter;
-import de.javagl.obj.Objs;
-import lombok.AllArgsConstructor;
-import lombok.EqualsAndHashCode;
-import lombok.ToString;
+import org.lwjgl.system.MemoryUtil;
 
 public class ToCoS {
 
-  private static class PointComparator implements Comparator<Vector3f> {
-    private final double epsilon;
-
-    public PointComparator(double epsilon) {
-      this.epsilon = epsilon;
-    }
+  // Welds vertices which are closer than EPSILON on every axis. Vertices are hashed into a
+  // uniform grid, so each vertex only compares itself to the few cells within EPSILON of it.
+  // Close vertices are merged with a union-find that always links to the smaller index, which
+  // makes the result independent of insertion and thread order.
+  private static class Nodify3d {
+    private static final float EPSILON = 0.00001f;
+    private static final float CELL_SIZE = EPSILON * 16;
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int DUPLICATE = -2;
+
+    private final float[] src;
+    private final int[] heads;
+    private final int[] next;
+    private final int mask;
+    private final AtomicIntegerArray parent;
+
+    // Input vertex index to welded vertex index.
+    private final int[] remap;
+    private final float[] vertices;
+    private final int size;
+
+    public Nodify3d(float[] src, int numVertices, boolean parallel) {
+      this.src = src;
+
+      int capacity = Integer.highestOneBit(Math.max(numVertices, 1) * 2) * 2;
+      mask = capacity - 1;
+      heads = new int[capacity];
+      next = new int[numVertices];
+      parent = new AtomicIntegerArray(numVertices);
+
+      Arrays.fill(heads, -1);
+
+      for (int i = 0; i < numVertices; i++) {
+        int slot = slot(cell(src[i * 3]), cell(src[i * 3 + 1]), cell(src[i * 3 + 2]));
+
+        // Exact copies (e.g. the corners of a triangle soup) join the first one right away and
+        // stay out of the grid, so a vertex shared by many triangles keeps its cell short.
+        int j = heads[slot];
+
+        while (j != -1
+            && (src[j * 3] != src[i * 3]
+                || src[j * 3 + 1] != src[i * 3 + 1]
+                || src[j * 3 + 2] != src[i * 3 + 2])) {
+          j = next[j];
+        }
 
-    @Override
-    public int compare(Vector3f p1, Vector3f p2) {
-      if (Math.abs(p1.x - p2.x) > epsilon) {
-        return Double.compare(p1.x, p2.x);
-      } else if (Math.abs(p1.y - p2.y) > epsilon) {
-        return Double.compare(p1.y, p2.y);
-      } else if (Math.abs(p1.z - p2.z) > epsilon) {
-        return Double.compare(p1.z, p2.z);
-      } else {
-        return 0;
+        if (j != -1) {
+          next[i] = DUPLICATE;
+          parent.set(i, j);
+        } else {
+          next[i] = heads[slot];
+          heads[slot] = i;
+          parent.set(i, i);
+        }
       }
-    }
-  }
 
-  private static class IEdgeComparator implements Comparator<IEdge> {
-
-    @Override
-    public int compare(IEdge e1, IEdge e2) {
+      IntStream range = IntStream.range(0, numVertices);
 
-      if (e1.a != e2.a) {
-        return Integer.compare(e1.a, e2.a);
-      } else if (e1.b != e2.b) {
-        return Integer.compare(e1.b, e2.b);
+      if (parallel && numVertices >= PARALLEL_THRESHOLD) {
+        range = range.parallel();
       }
 
-      return 0;
-    }
-  }
+      range.filter(i -> next[i] != DUPLICATE).forEach(this::weld);
 
-  private static class Nodify3d {
+      remap = new int[numVertices];
+      int n = 0;
 
-    private Map<Vector3f, Integer> lut =
-        new TreeMap<Vector3f, Integer>(new PointComparator(0.00001));
+      for (int i = 0; i < numVertices; i++) {
+        int r = find(i);
+        remap[i] = r == i ? n++ : remap[r];
+      }
 
-    private Map<Integer, Vector3f> lut_ = new HashMap<Integer, Vector3f>();
+      size = n;
+      vertices = new float[n * 3];
 
-    public int encode(Vector3f v) {
-      Integer idx = lut.computeIfAbsent(v, key -> lut.size());
-      lut_.put(idx, v);
-      return idx;
+      for (int i = 0; i < numVertices; i++) {
+        if (parent.get(i) == i) {
+          System.arraycopy(src, i * 3, vertices, remap[i] * 3, 3);
+        }
+      }
     }
 
-    public Vector3f decode(int n) {
+    private void weld(int i) {
+      float x = src[i * 3];
+      float y = src[i * 3 + 1];
+      float z = src[i * 3 + 2];
 
-      Vector3f v = lut_.get(n);
+      for (long cx = cell(x - EPSILON); cx <= cell(x + EPSILON); cx++) {
+        for (long cy = cell(y - EPSILON); cy <= cell(y + EPSILON); cy++) {
+          for (long cz = cell(z - EPSILON); cz <= cell(z + EPSILON); cz++) {
 
-      return v;
-    }
+            int head = heads[slot(cx, cy, cz)];
 
-    public int size() {
-      return lut.size();
+            for (int j = head; j != -1; j = next[j]) {
+              if (j < i
+                  && Math.abs(src[j * 3] - x) <= EPSILON
+                  && Math.abs(src[j * 3 + 1] - y) <= EPSILON
+                  && Math.abs(src[j * 3 + 2] - z) <= EPSILON) {
+                union(i, j);
+              }
+            }
+          }
+        }
+      }
     }
-  }
 
-  @EqualsAndHashCode
-  @ToString
-  public static class IEdge {
-    private int a;
-    private int b;
-
-    public IEdge(int a, int b) {
-      set(a, b);
+    private static long cell(float c) {
+      return (long) Math.floor(c / CELL_SIZE);
     }
 
-    private void set(int a, int b) {
-      this.a = Math.min(a, b);
-      this.b = Math.max(a, b);
-    }
+    // Open addressing slot of the cell; the slot is either empty or holds exactly this cell.
+    private int slot(long cx, long cy, long cz) {
+      long h = (cx * 73856093L) ^ (cy * 19349663L) ^ (cz * 83492791L);
+      int slot = (int) (h ^ (h >>> 32)) & mask;
 
-    public int getCommon(IEdge e) {
-      if (a == e.a || a == e.b) {
-        return a;
-      } else if (b == e.a || b == e.b) {
-        return b;
+      while (heads[slot] != -1) {
+        int v = heads[slot];
+        if (cell(src[v * 3]) == cx && cell(src[v * 3 + 1]) == cy && cell(src[v * 3 + 2]) == cz) {
+          break;
+        }
+        slot = (slot + 1) & mask;
       }
-      return -1;
+
+      return slot;
     }
 
-    public boolean touches(IEdge e) {
-      if (a == e.a || a == e.b) {
-        return true;
-      } else if (b == e.a || b == e.b) {
-        return true;
+    private int find(int i) {
+      int p;
+      while ((p = parent.get(i)) != i) {
+        int gp = parent.get(p);
+        parent.compareAndSet(i, p, gp);
+        i = gp;
       }
-      return false;
+      return i;
     }
-  }
 
-  @ToString
-  @EqualsAndHashCode(of = {"ab", "bc", "ca"})
-  private static class ITri {
-    private IEdge _ab;
-    private IEdge _bc;
-    private IEdge _ca;
+    private void union(int i, int j) {
+      while (true) {
+        int a = find(i);
+        int b = find(j);
 
-    private final IEdge ab;
-    private final IEdge bc;
-    private final IEdge ca;
-
-    private boolean visited = false;
-    private boolean removed = false;
-
-    public ITri(IEdge ab, IEdge bc, IEdge ca) {
-      super();
+        if (a == b) {
+          return;
+        }
 
-      this._ab = ab;
-      this._bc = bc;
-      this._ca = ca;
+        if (a < b) {
+          int tmp = a;
+          a = b;
+          b = tmp;
+        }
 
-      List<IEdge> edges = Arrays.asList(ab, bc, ca);
-      edges.sort(new IEdgeComparator());
+        if (parent.compareAndSet(a, a, b)) {
+          return;
+        }
+      }
+    }
 
-      this.ab = edges.get(0);
-      this.bc = edges.get(1);
-      this.ca = edges.get(2);
+    public int encode(int i) {
+      return remap[i];
     }
 
-    public void reverse() {
-      IEdge tmp = _ab;
-      _ab = _ca;
-      _ca = tmp;
+    public int size() {
+      return size;
     }
   }
 
-  public static File triOptStack(File objFile) throws FileNotFoundException, IOException {
-    Map<IEdge, List<ITri>> edgeTriLut = new HashMap<IEdge, List<ITri>>();
-    Map<Integer, List<IEdge>> nodeEdgeLut = new HashMap<Integer, List<IEdge>>();
-    int triCount = 0;
-    List<ITri> tris = new ArrayList<>();
-    Nodify3d nodify = new Nodify3d();
+  // Open addressing map from an undirected edge to an int value.
+  private static class EdgeTable {
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
 
-    Obj3d obj = Obj3d.read(objFile);
+    public EdgeTable(int expected, Scratch scratch) {
+      int capacity = Integer.highestOneBit(Math.max(expected, 1) * 2) * 2;
+      mask = capacity - 1;
+      keys = scratch.longs(Scratch.EDGE_KEYS, capacity);
+      values = scratch.ints(Scratch.EDGE_VALUES, capacity);
 
-    triCount = obj.getNumFaces();
-
-    for (int i = 0; i < triCount; i++) {
-      Obj3dFace face = obj.getFace(i);
-      int a = face.getVertexIndex(0);
-      int b = face.getVertexIndex(1);
-      int c = face.getVertexIndex(2);
+      Arrays.fill(keys, 0, capacity, -1L);
+    }
 
-      Vector3f tria = obj.getVertex(a);
-      Vector3f trib = obj.getVertex(b);
-      Vector3f tric = obj.getVertex(c);
+    public static long key(int a, int b) {
+      return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
 
-      IEdge ab = new IEdge(nodify.encode(tria), nodify.encode(trib));
-      IEdge bc = new IEdge(nodify.encode(trib), nodify.encode(tric));
-      IEdge ca = new IEdge(nodify.encode(tric), nodify.encode(tria));
+    private int slot(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      int slot = (int) (h >>> 32) & mask;
 
-      nodeEdgeLut.computeIfAbsent(ab.a, key -> new ArrayList<>()).add(ab);
-      nodeEdgeLut.computeIfAbsent(ab.b, key -> new ArrayList<>()).add(ab);
+      while (keys[slot] != -1L && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
 
-      nodeEdgeLut.computeIfAbsent(bc.a, key -> new ArrayList<>()).add(bc);
-      nodeEdgeLut.computeIfAbsent(bc.b, key -> new ArrayList<>()).add(bc);
+      return slot;
+    }
 
-      nodeEdgeLut.computeIfAbsent(ca.a, key -> new ArrayList<>()).add(ca);
-      nodeEdgeLut.computeIfAbsent(ca.b, key -> new ArrayList<>()).add(ca);
+    public void put(int a, int b, int value) {
+      long key = key(a, b);
+      int slot = slot(key);
+      keys[slot] = key;
+      values[slot] = value;
+    }
 
-      ITri itri = new ITri(ab, bc, ca);
+    public int get(int a, int b) {
+      int slot = slot(key(a, b));
+      return keys[slot] == -1L ? -1 : values[slot];
+    }
+  }
 
-      tris.add(itri);
+  // Large arrays of one decimation or reconstruction, reused by the next one. The array of a slot
+  // is at least as long as asked for and holds stale data, unless it is handed out cleared.
+  private static class Scratch {
+    private static final int VERTEX_OFFSETS = 0;
+    private static final int VERTEX_HALF_EDGES = 1;
+    private static final int TWIN = 2;
+    private static final int FILL = 3;
+    private static final int NEIGHBOUR_OFFSETS = 4;
+    private static final int NEIGHBOURS = 5;
+    private static final int OPEN = 6;
+    private static final int POSITION = 7;
+    private static final int KEPT = 8;
+    private static final int BELOW = 9;
+    private static final int ABOVE = 10;
+    private static final int BOUNDARY_OFFSETS = 11;
+    private static final int BOUNDARY = 12;
+    private static final int EDGE_VALUES = 13;
+
+    private static final int HOLES = 0;
+    private static final int EDGE_KEYS = 1;
+
+    private static final int FILLED = 0;
+
+    private final int[][] ints = new int[14][];
+    private final long[][] longs = new long[2][];
+    private final boolean[][] flags = new boolean[1][];
+    private byte[] bytes;
+
+    public int[] ints(int slot, int size) {
+      if (ints[slot] == null || ints[slot].length < size) {
+        ints[slot] = new int[size];
+      }
+      return ints[slot];
+    }
 
-      edgeTriLut.computeIfAbsent(ab, key -> new ArrayList<>()).add(itri);
-      edgeTriLut.computeIfAbsent(bc, key -> new ArrayList<>()).add(itri);
-      edgeTriLut.computeIfAbsent(ca, key -> new ArrayList<>()).add(itri);
+    public int[] clearedInts(int slot, int size) {
+      int[] a = ints(slot, size);
+      Arrays.fill(a, 0, size, 0);
+      return a;
     }
 
-    String prefix = FilenameUtils.getBaseName(objFile.getName());
+    public long[] longs(int slot, int size) {
+      if (longs[slot] == null || longs[slot].length < size) {
+        longs[slot] = new long[size];
+      }
+      return longs[slot];
+    }
 
-    return triOpStack(edgeTriLut, triCount, tris, nodify, nodeEdgeLut, prefix);
-  }
+    public boolean[] clearedFlags(int slot, int size) {
+      if (flags[slot] == null || flags[slot].length < size) {
+        flags[slot] = new boolean[size];
+      } else {
+        Arrays.fill(flags[slot], 0, size, false);
+      }
+      return flags[slot];
+    }
 
-  private static File triOpStack(
-      Map<IEdge, List<ITri>> edgeTriLut,
-      int triCount,
-      List<ITri> allTris,
-      Nodify3d nodify,
-      Map<Integer, List<IEdge>> nodeEdgeLut,
-      String dumpPrefix)
-      throws IOException {
-    for (List<ITri> tris : edgeTriLut.values()) {
-      if (tris.size() != 2) {
-        throw new IOException(
-            "Invalid mesh topology. Expected 2 triangles per edge! Actual: " + tris.size());
+    public byte[] clearedBytes(int size) {
+      if (bytes == null || bytes.length < size) {
+        bytes = new byte[size];
+      } else {
+        Arrays.fill(bytes, 0, size, (byte) 0);
       }
+      return bytes;
     }
+  }
+
+  // Scratch arrays shared by the calls of an engine or of the command line. At most one set per
+  // processor is kept, about as many as calls run at once.
+  static class ScratchPool {
+    private static final int MAX_SIZE = Runtime.getRuntime().availableProcessors();
 
-    int triCountAfter = triCount;
+    private final ConcurrentLinkedQueue<Scratch> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
 
-    Stack<ITri> open = new Stack<>();
-    Stack<ITri> closed = new Stack<>();
+    private Scratch acquire() {
+      Scratch scratch = free.poll();
 
-    closed.push(allTris.get(0));
+      if (scratch == null) {
+        return new Scratch();
+      }
 
-    while (!closed.isEmpty()) {
-      ITri tri = closed.pop();
+      size.decrementAndGet();
+      return scratch;
+    }
 
-      if (tri.visited) {
-        continue;
+    private void release(Scratch scratch) {
+      if (size.incrementAndGet() <= MAX_SIZE) {
+        free.offer(scratch);
+      } else {
+        size.decrementAndGet();
       }
+    }
+  }
 
-      tri.visited = true;
+  // Compact triangle mesh with implicit half-edges. Half-edge h = 3 * t + k runs from corner k of
+  // triangle t to corner (k + 1) % 3. Topology is kept in flat int arrays so that neighbour and
+  // adjacency lookups are plain array indexing.
+  private static class HalfEdgeMesh {
+    private final float[] vertices;
+    private final int numVertices;
 
-      if (canRemove(tri, edgeTriLut) && !isEdgeCase(tri, edgeTriLut, nodeEdgeLut)) {
+    private final int[] tris;
+    private final int numTris;
 
-        tri.removed = true;
+    // Half-edge on the other side of the same edge.
+    private final int[] twin;
 
-        triCountAfter--;
+    // CSR adjacency: half-edges leaving vertex v are vertexHalfEdges[vertexOffsets[v]] up to
+    // vertexHalfEdges[vertexOffsets[v + 1] - 1].
+    private final int[] vertexOffsets;
+    private final int[] vertexHalfEdges;
 
-        // Remove all references.
-        edgeTriLut.get(tri.ab).remove(tri);
-        edgeTriLut.get(tri.bc).remove(tri);
-        edgeTriLut.get(tri.ca).remove(tri);
+    // Sorted neighbour vertices in the same CSR layout, built by sortNeighbours().
+    private int[] neighbourOffsets;
+    private int[] neighbours;
 
-      } else {
-        open.add(tri);
-      }
+    // The arrays above are borrowed from it.
+    private final Scratch scratch;
 
-      // Add the neighbours to the check list.
-      closed.addAll(edgeTriLut.get(tri.ab));
-      closed.addAll(edgeTriLut.get(tri.bc));
-      closed.addAll(edgeTriLut.get(tri.ca));
+    public HalfEdgeMesh(
+        float[] vertices, int numVertices, int[] tris, int numTris, Scratch scratch)
+        throws IOException {
+      this(vertices, numVertices, tris, numTris, true, scratch);
     }
 
-    File target = dumpTriangles(nodify, open, dumpPrefix);
-
-    System.out.println("Strategy: stack");
-    System.out.println(
-        "Triangles before: " + triCount + ", triangles after: " + triCountAfter + ".");
-    double p = (triCountAfter * 100.0) / triCount;
-    System.out.println("Removed " + (100.0 - p) + "% of triangles.");
+    // An open mesh may have boundary edges with a single triangle, their twin is -1.
+    public HalfEdgeMesh(
+        float[] vertices,
+        int numVertices,
+        int[] tris,
+        int numTris,
+        boolean closed,
+        Scratch scratch)
+        throws IOException {
+      this.vertices = vertices;
+      this.numVertices = numVertices;
+      this.tris = tris;
+      this.numTris = numTris;
+      this.scratch = scratch;
+
+      int numHalfEdges = numTris * 3;
+
+      vertexOffsets = scratch.clearedInts(Scratch.VERTEX_OFFSETS, numVertices + 1);
+
+      for (int h = 0; h < numHalfEdges; h++) {
+        vertexOffsets[tris[h] + 1]++;
+      }
 
-    return target;
-  }
+      for (int v = 0; v < numVertices; v++) {
+        vertexOffsets[v + 1] += vertexOffsets[v];
+      }
 
-  protected static File dumpTriangles(Nodify3d nodify, List<ITri> tris, String prefix)
-      throws IOException {
+      vertexHalfEdges = scratch.ints(Scratch.VERTEX_HALF_EDGES, numHalfEdges);
+      int[] fill = scratch.ints(Scratch.FILL, numVertices);
+      System.arraycopy(vertexOffsets, 0, fill, 0, numVertices);
 
-    if (!DUMP) {
-      return null;
-    }
+      for (int h = 0; h < numHalfEdges; h++) {
+        vertexHalfEdges[fill[tris[h]]++] = h;
+      }
 
-    File target = new File("dump/" + prefix + "_decimated.tbin");
+      twin = scratch.ints(Scratch.TWIN, numHalfEdges);
 
-    target.getParentFile().mkdirs();
+      for (int h = 0; h < numHalfEdges; h++) {
+        int u = origin(h);
+        int v = target(h);
 
-    DataOutputStream dos = new DataOutputStream(new FileOutputStream(target));
+        // The twin normally runs v -> u, but inconsistently oriented neighbours are accepted as
+        // well, just like the undirected edges of the original lookup. Every half-edge on the edge
+        // leaves u or v, or precedes one which does, so only the endpoint with the smaller degree
+        // is scanned.
+        int a = u;
+        int b = v;
 
-    dos.writeInt(nodify.size());
+        if (vertexOffsets[u + 1] - vertexOffsets[u] > vertexOffsets[v + 1] - vertexOffsets[v]) {
+          a = v;
+          b = u;
+        }
 
-    for (int i = 0; i < nodify.size(); i++) {
-      Vector3f v = nodify.decode(i);
-      dos.writeFloat(v.x);
-      dos.writeFloat(v.y);
-      dos.writeFloat(v.z);
-    }
+        int found = -1;
+        int count = 1;
 
-    for (ITri tri : tris) {
-      dos.writeInt(tri._ab.getCommon(tri._bc));
-      dos.writeInt(tri._bc.getCommon(tri._ca));
-      dos.writeInt(tri._ca.getCommon(tri._ab));
-    }
+        for (int i = vertexOffsets[a]; i < vertexOffsets[a + 1]; i++) {
+          int o = vertexHalfEdges[i];
 
-    System.out.println("Num triangles: " + tris.size());
+          if (o != h && target(o) == b) {
+            found = o;
+            count++;
+          }
 
-    dos.close();
+          if (prev(o) != h && apex(o) == b) {
+            found = prev(o);
+            count++;
+          }
+        }
 
-    return target;
-  }
+        if (count != 2 && (closed || count != 1)) {
+          throw new IOException(
+              "Invalid mesh topology. Expected 2 triangles per edge! Actual: " + count);
+        }
 
-  private static boolean DUMP = true;
-  private static boolean CHECK_FOR_INVALID_TRIANGLES = true;
+        twin[h] = found;
+      }
+    }
 
-  private static boolean isEdgeCase(
-      ITri tri, Map<IEdge, List<ITri>> edgeTriLut, Map<Integer, List<IEdge>> nodeEdgeLut) {
-    // An edge case (check the case.obj) is where edges can form a triangle which does not exist in
-    // the original model.
+    public static int next(int h) {
+      return h % 3 == 2 ? h - 2 : h + 1;
+    }
 
-    if (!CHECK_FOR_INVALID_TRIANGLES) {
-      return false;
+    public static int prev(int h) {
+      return h % 3 == 0 ? h + 2 : h - 1;
     }
 
-    if (canEdgeFormInvalidTriangle(tri.ab, edgeTriLut, nodeEdgeLut)) {
-      return true;
-    } else if (canEdgeFormInvalidTriangle(tri.bc, edgeTriLut, nodeEdgeLut)) {
-      return true;
-    } else if (canEdgeFormInvalidTriangle(tri.ca, edgeTriLut, nodeEdgeLut)) {
-      return true;
+    public int origin(int h) {
+      return tris[h];
     }
 
-    return false;
-  }
+    public int target(int h) {
+      return tris[next(h)];
+    }
 
-  private static boolean canEdgeFormInvalidTriangle(
-      IEdge c, Map<IEdge, List<ITri>> lut, Map<Integer, List<IEdge>> nodeEdgeLut) {
+    // The corner of the triangle which does not lie on the half-edge.
+    public int apex(int h) {
+      return tris[prev(h)];
+    }
 
-    for (IEdge a : nodeEdgeLut.get(c.a)) {
+    // Builds the sorted, unique neighbours of every vertex from the triangles around it.
+    public void sortNeighbours() {
 
-      if (a.equals(c)) {
-        continue;
+      if (neighbours != null) {
+        return;
       }
 
-      for (IEdge b : nodeEdgeLut.get(c.b)) {
+      neighbourOffsets = scratch.ints(Scratch.NEIGHBOUR_OFFSETS, numVertices + 1);
+      neighbours = scratch.ints(Scratch.NEIGHBOURS, numTris * 6);
+      neighbourOffsets[0] = 0;
+      int n = 0;
 
-        if (b.equals(a) || b.equals(c)) {
-          continue;
+      for (int v = 0; v < numVertices; v++) {
+        int start = n;
+
+        for (int i = vertexOffsets[v]; i < vertexOffsets[v + 1]; i++) {
+          int h = vertexHalfEdges[i];
+          neighbours[n++] = target(h);
+          neighbours[n++] = apex(h);
         }
 
-        if (a.touches(b) && a.touches(c) && b.touches(c)) {
+        Arrays.sort(neighbours, start, n);
 
-          // We have 3 edges that touch which means they might form a triangle. If they form a
-          // triangle which does not exist, the edges are invalid.
+        // On a closed surface every neighbour is seen from two triangles.
+        int end = start;
 
-          // If these edges can form a triangle which does not exist, the edges are invalid.
-          ITri test = new ITri(a, b, c);
-          IEdge[] edges = {a, b, c};
+        for (int i = start; i < n; i++) {
+          if (end == start || neighbours[end - 1] != neighbours[i]) {
+            neighbours[end++] = neighbours[i];
+          }
+        }
 
-          boolean found = false;
+        n = end;
+        neighbourOffsets[v + 1] = n;
+      }
+    }
 
-          for (IEdge e : edges) {
-            if (lut.get(e).contains(test)) {
-              found = true;
-              break;
-            }
-          }
+    // Whether u and v share a neighbour other than x and y. The sorted neighbour lists are merged,
+    // or the shorter one is searched in the longer one when the degrees are far apart.
+    public boolean hasCommonNeighbour(int u, int v, int x, int y) {
+      int i = neighbourOffsets[u];
+      int iEnd = neighbourOffsets[u + 1];
+      int j = neighbourOffsets[v];
+      int jEnd = neighbourOffsets[v + 1];
+
+      if (iEnd - i > jEnd - j) {
+        i = neighbourOffsets[v];
+        iEnd = neighbourOffsets[v + 1];
+        j = neighbourOffsets[u];
+        jEnd = neighbourOffsets[u + 1];
+      }
 
-          if (!found) {
+      if ((iEnd - i) * 16 < jEnd - j) {
+        for (; i < iEnd; i++) {
+          int w = neighbours[i];
+          if (w != x && w != y && Arrays.binarySearch(neighbours, j, jEnd, w) >= 0) {
             return true;
           }
         }
+        return false;
       }
-    }
-
-    return false;
-  }
 
-  private static boolean canRemove(ITri tri, Map<IEdge, List<ITri>> lut) {
-
-    // A triangle can safely be removed if the edges reference one other triangle.
-    if (lut.get(tri.ab).stream().filter(t -> !t.removed).count() != 2) {
-      return false;
-    }
-
-    if (lut.get(tri.bc).stream().filter(t -> !t.removed).count() != 2) {
-      return false;
-    }
+      while (i < iEnd && j < jEnd) {
+        int a = neighbours[i];
+        int b = neighbours[j];
+
+        if (a < b) {
+          i++;
+        } else if (a > b) {
+          j++;
+        } else if (a != x && a != y) {
+          return true;
+        } else {
+          i++;
+          j++;
+        }
+      }
 
-    if (lut.get(tri.ca).stream().filter(t -> !t.removed).count() != 2) {
       return false;
     }
+  }
 
-    return true;
+  public static List<Obj3d> triOptStack(File objFile, Stats stats)
+      throws FileNotFoundException, IOException {
+    return decimate(
+        Obj3d.readMeshes(objFile, Options.DEFAULT, stats),
+        FilenameUtils.getBaseName(objFile.getName()),
+        Options.DEFAULT,
+        SCRATCH,
+        stats);
   }
 
-  @AllArgsConstructor
-  private static class Obj3dFace {
+  @SuppressWarnings("try")
+  static List<Obj3d> decimate(
+      List<Obj3d> objs, String prefix, Options options, ScratchPool pool, Stats stats)
+      throws IOException {
+    return forEachMesh(
+        objs,
+        stats,
+        (obj, i, meshStats) -> {
+          Scratch scratch = pool.acquire();
+
+          try {
+            Obj3d src = options.reorder ? reorder(obj, meshStats) : obj;
+            HalfEdgeMesh mesh;
+
+            try (Stats.Timer t = meshStats.time("topology")) {
+              mesh =
+                  new HalfEdgeMesh(
+                      src.vertices, src.getNumVertices(), src.faces, src.getNumFaces(), scratch);
+            }
 
-    private final int i;
-    private final int j;
-    private final int k;
+            String dumpPrefix = objs.size() == 1 ? prefix : prefix + "_" + i;
 
-    public int getVertexIndex(int x) {
-      switch (x) {
-        case 0:
-          return i;
-        case 1:
-          return j;
-        case 2:
-          return k;
-      }
-      return -1;
-    }
+            return triOpStack(mesh, dumpPrefix, options, scratch, meshStats);
+          } finally {
+            pool.release(scratch);
+          }
+        });
   }
 
-  private static class Obj3d {
+  private interface MeshTask {
+    Obj3d apply(Obj3d obj, int index, Stats stats) throws IOException;
+  }
 
-    private List<Obj3dFace> faces = new ArrayList<ToCoS.Obj3dFace>();
+  // Runs the task for every mesh of a scene, concurrently on the common pool, and returns the
+  // results in the order of the meshes.
+  private static List<Obj3d> forEachMesh(List<Obj3d> objs, Stats stats, MeshTask task)
+      throws IOException {
+    List<ForkJoinTask<Obj3d>> tasks = new ArrayList<>();
+
+    for (int i = 0; i < objs.size(); i++) {
+      Obj3d obj = objs.get(i);
+      int index = i;
+      Stats meshStats = stats.mesh(obj.name.isEmpty() ? "mesh" + i : obj.name);
+
+      tasks.add(
+          ForkJoinTask.adapt(
+              () -> {
+                try {
+                  Obj3d result = task.apply(obj, index, meshStats);
+                  result.name = obj.name;
+                  return result;
+                } catch (IOException e) {
+                  throw new UncheckedIOException(e);
+                }
+              }));
+    }
 
-    public static File writeObj(Obj3d src, File file) throws FileNotFoundException, IOException {
-      // Write as OBJ, re-save with ASSIMP.
-      int numVerts = src.getNumVertices();
-      Obj out = Objs.create();
+    ForkJoinTask.invokeAll(tasks);
 
-      for (int i = 0; i < numVerts; i++) {
-        Vector3f v = src.getVertex(i);
+    List<Obj3d> results = new ArrayList<>();
 
-        out.addVertex(v.x, v.y, v.z);
+    try {
+      for (ForkJoinTask<Obj3d> t : tasks) {
+        results.add(t.join());
       }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
 
-      for (int f = 0; f < src.getNumFaces(); f++) {
-        Obj3dFace face = src.getFace(f);
+    return results;
+  }
 
-        out.addFace(face.getVertexIndex(0), face.getVertexIndex(1), face.getVertexIndex(2));
-      }
+  private static Obj3d triOpStack(
+      HalfEdgeMesh mesh, String dumpPrefix, Options options, Scratch scratch, Stats stats)
+      throws IOException {
+    int triCount = mesh.numTris;
 
-      try (FileOutputStream fout = new FileOutputStream(file)) {
-        ObjWriter.write(out, fout);
-      }
+    Stats.Timer timer = stats.time("decimate");
+    DecimateEvent event = new DecimateEvent();
+    event.begin();
 
-      return file;
-    }
+    Strategy strategy = strategy(options.strategy);
+    byte[] edgeCases = null;
 
-    public int getNumFaces() {
-      return faces.size();
+    if (options.checkForInvalidTriangles) {
+      edgeCases = scratch.clearedBytes(triCount * 3);
+      mesh.sortNeighbours();
     }
 
-    private static Map<String, String> extToFormatId = null;
+    // Kept triangles in visit order.
+    int[] open = null;
+    int numOpen = 0;
 
-    public static void saveAs(File file, String target) {
+    int partitions = Math.max(1, Math.min(options.partitions, triCount / 64));
+    long visited = 0;
+    long edgeCaseRejections = 0;
+    long seams = 0;
 
-      if (extToFormatId == null) {
-        extToFormatId = new HashMap<String, String>();
+    if (partitions == 1) {
+      Patch all = new Patch(mesh, null, null, 0, triCount, edgeCases, strategy, scratch);
+      all.run();
 
-        long c = Assimp.aiGetExportFormatCount();
+      numOpen = all.numKept;
+      open = all.kept;
+      visited = all.numVisited;
+      edgeCaseRejections = all.edgeCaseRejections;
+    } else {
+      // Cut the triangles along a space filling curve into spatially compact patches and
+      // decimate their interiors concurrently.
+      int[] order = mortonOrder(mesh);
+      int[] position = scratch.ints(Scratch.POSITION, triCount);
 
-        for (long i = 0; i < c; i++) {
-          AIExportFormatDesc desc = Assimp.aiGetExportFormatDescription(i);
-          extToFormatId.put(desc.fileExtensionString().toLowerCase(), desc.idString());
-        }
-      }
+      open = scratch.ints(Scratch.OPEN, triCount);
 
-      String formatId = extToFormatId.get(FilenameUtils.getExtension(target).toLowerCase());
+      for (int i = 0; i < triCount; i++) {
+        position[order[i]] = i;
+      }
 
-      AIScene scene = Assimp.aiImportFile(file.getAbsolutePath(), Assimp.aiProcess_Triangulate);
-      Assimp.aiExportScene(scene, formatId, target, Assimp.aiProcess_Triangulate);
-    }
+      List<Patch> patches = new ArrayList<>();
 
-    public static Obj3d read(File file) {
+      for (int p = 0; p < partitions; p++) {
+        int start = (int) ((long) triCount * p / partitions);
+        int end = (int) ((long) triCount * (p + 1) / partitions);
+        patches.add(new Patch(mesh, order, position, start, end, edgeCases, strategy, null));
+      }
 
-      AIScene scene = Assimp.aiImportFile(file.getAbsolutePath(), Assimp.aiProcess_Triangulate);
+      ForkJoinTask.invokeAll(
+          patches.stream().map(ForkJoinTask::adapt).collect(Collectors.toList()));
 
-      AIMesh mesh = AIMesh.create(scene.mMeshes().get(0));
+      BitSet removed = new BitSet(triCount);
 
-      Obj3d obj = new Obj3d();
+      for (Patch patch : patches) {
+        for (int i = patch.removed.nextSetBit(0); i >= 0; i = patch.removed.nextSetBit(i + 1)) {
+          removed.set(order[patch.start + i]);
+        }
 
-      for (int i = 0; i < mesh.mNumVertices(); i++) {
-        AIVector3D _a = mesh.mVertices().get(i);
+        System.arraycopy(patch.kept, 0, open, numOpen, patch.numKept);
+        numOpen += patch.numKept;
 
-        Vector3f tria = new Vector3f(_a.x(), _a.y(), _a.z());
+        visited += patch.numVisited;
+        edgeCaseRejections += patch.edgeCaseRejections;
+        seams += patch.numSeams;
+      }
 
-        obj.addVertex(tria);
+      // Seam triangles see the neighbours of other patches, resolve them one by one.
+      for (Patch patch : patches) {
+        for (int i = 0; i < patch.numSeams; i++) {
+          int tri = patch.seams[i];
+
+          if (!canRemove(mesh, tri, removed)) {
+            open[numOpen++] = tri;
+          } else if (isEdgeCase(mesh, tri, edgeCases)) {
+            edgeCaseRejections++;
+            open[numOpen++] = tri;
+          } else {
+            removed.set(tri);
+          }
+        }
       }
+    }
 
-      for (int f = 0; f < mesh.mNumFaces(); f++) {
-        AIFace face = mesh.mFaces().get(f);
+    int triCountAfter = numOpen;
 
-        int a = face.mIndices().get(0);
-        int b = face.mIndices().get(1);
-        int c = face.mIndices().get(2);
+    // Reordered meshes keep the curve order instead of the visit order.
+    if (options.reorder) {
+      Arrays.sort(open, 0, numOpen);
+    }
 
-        obj.addFace(a, b, c);
-      }
+    Obj3d decimated = new Obj3d();
 
-      return obj;
+    decimated.vertices = mesh.vertices;
+    decimated.numVertices = mesh.numVertices;
+    decimated.faces = new int[numOpen * 3];
+    decimated.numFaces = numOpen;
+
+    for (int i = 0; i < numOpen; i++) {
+      System.arraycopy(mesh.tris, open[i] * 3, decimated.faces, i * 3, 3);
     }
 
-    public int getNumVertices() {
-      return n3d.size();
+    timer.close();
+
+    event.end();
+    if (event.shouldCommit()) {
+      event.mesh = dumpPrefix;
+      event.strategy = options.strategy;
+      event.triangles = triCount;
+      event.visited = visited;
+      event.edgeCaseRejections = edgeCaseRejections;
+      event.removed = triCount - triCountAfter;
+      event.commit();
     }
 
-    private Nodify3d n3d = new Nodify3d();
-    private Map<Integer, Integer> remap = new HashMap<Integer, Integer>();
-    private int n = 0;
+    stats.count("patches", partitions);
+    stats.count("trianglesBefore", triCount);
+    stats.count("trianglesAfter", triCountAfter);
+    stats.count("visited", visited);
+    stats.count("edgeCaseRejections", edgeCaseRejections);
+    stats.count("seams", seams);
+    stats.count("removed", triCount - triCountAfter);
 
-    public void addVertex(Vector3f vertex) {
-      int pos = n3d.encode(vertex);
-      remap.put(n++, pos);
-    }
+    dumpTriangles(decimated, dumpPrefix, options, stats);
 
-    public void addFace(int a, int b, int c) {
-      faces.add(new Obj3dFace(remap.get(a), remap.get(b), remap.get(c)));
+    return decimated;
+  }
+
+  private static long edgeKey(HalfEdgeMesh mesh, int h) {
+    return EdgeTable.key(mesh.origin(h), mesh.target(h));
+  }
+
+  // Decimates the triangles order[start] up to order[end - 1] of one patch, or all of them when
+  // there is no order. A triangle with a neighbour in another patch is a seam, it is neither
+  // removed nor kept here but left for a sequential pass. All state is indexed by the position in
+  // the patch, so patches can run concurrently.
+  private static class Patch implements Runnable {
+    private final HalfEdgeMesh mesh;
+    private final int[] order;
+    private final int[] position;
+    private final int start;
+    private final int end;
+    private final byte[] edgeCases;
+
+    private final BitSet visited;
+    private final BitSet removed;
+
+    // Kept triangles in visit order.
+    private int[] kept;
+    private int numKept = 0;
+
+    private int[] seams = new int[16];
+    private int numSeams = 0;
+
+    private long numVisited = 0;
+    private long edgeCaseRejections = 0;
+
+    private final Strategy strategy;
+
+    // Triangles which must be kept, they are handled like seams.
+    private BitSet pinned;
+
+    // Lends the large arrays when there is only one patch, or null.
+    private final Scratch scratch;
+
+    public Patch(
+        HalfEdgeMesh mesh,
+        int[] order,
+        int[] position,
+        int start,
+        int end,
+        byte[] edgeCases,
+        Strategy strategy,
+        Scratch scratch) {
+      this.mesh = mesh;
+      this.order = order;
+      this.position = position;
+      this.start = start;
+      this.end = end;
+      this.edgeCases = edgeCases;
+      this.strategy = strategy;
+      this.scratch = scratch;
+
+      visited = new BitSet(end - start);
+      removed = new BitSet(end - start);
+      kept = ints(Scratch.KEPT);
     }
 
-    public Vector3f getVertex(int i) {
-      return n3d.decode(i);
+    private int size() {
+      return end - start;
     }
 
-    public Obj3dFace getFace(int i) {
-      return faces.get(i);
+    // An array of at least one int per triangle of the patch.
+    private int[] ints(int slot) {
+      return scratch == null ? new int[size()] : scratch.ints(slot, size());
     }
 
-    public void addVertex(float x, float y, float z) {
-      addVertex(new Vector3f(x, y, z));
+    private int local(int tri) {
+      return order == null ? tri : position[tri] - start;
     }
-  }
 
-  public static void opt2full(File tbinOpt, File recObj) throws IOException, IOException {
-    // Restore the optimized triangular mesh.
-    Obj3d obj = Obj3d.read(tbinOpt);
+    private int global(int i) {
+      return order == null ? i : order[start + i];
+    }
 
-    Obj3d rec = new Obj3d();
+    private boolean contains(int tri) {
+      return order == null || (position[tri] >= start && position[tri] < end);
+    }
 
-    for (int i = 0; i < obj.getNumVertices(); i++) {
-      Vector3f vertex = obj.getVertex(i);
-      rec.addVertex(vertex);
+    @Override
+    public void run() {
+      strategy.decimate(this);
     }
 
-    Nodify3d n = rec.n3d;
+    // Visits the triangles in the order they come out of the open list, a triangle is removed
+    // when none of its neighbours has been.
+    private void traverse(TriOrder open) {
+      int seed = 0;
 
-    Map<Integer, List<IEdge>> nodeEdgeLut = new HashMap<>();
-    Map<IEdge, List<ITri>> edgeTriLut = new HashMap<>();
-    List<ITri> tris = new ArrayList<>();
+      while (seed < end - start) {
+        if (visited.get(seed)) {
+          seed = visited.nextClearBit(seed);
+          continue;
+        }
 
-    for (int i = 0; i < obj.getNumFaces(); i++) {
-      Obj3dFace face = obj.getFace(i);
+        // Start a new connected component.
+        open.push(seed);
+
+        while (!open.isEmpty()) {
+          int i = open.pop();
+          int tri = global(i);
+
+          visited.set(i);
+          numVisited++;
+
+          if (isSeam(tri)) {
+            addSeam(tri);
+          } else if (!canRemove(tri)) {
+            kept[numKept++] = tri;
+          } else if (isEdgeCase(mesh, tri, edgeCases)) {
+            edgeCaseRejections++;
+            kept[numKept++] = tri;
+          } else {
+            removed.set(i);
+          }
 
-      int a = face.getVertexIndex(0);
-      int b = face.getVertexIndex(1);
-      int c = face.getVertexIndex(2);
+          // Add the neighbours to the check list, in the order of the sorted edges.
+          int h = tri * 3;
+          int h0 = h;
+          int h1 = h + 1;
+          int h2 = h + 2;
 
-      IEdge ab = new IEdge(a, b);
-      IEdge bc = new IEdge(b, c);
-      IEdge ca = new IEdge(c, a);
+          if (edgeKey(mesh, h1) < edgeKey(mesh, h0)) {
+            h0 = h + 1;
+            h1 = h;
+          }
+          if (edgeKey(mesh, h2) < edgeKey(mesh, h1)) {
+            h2 = h1;
+            h1 = h + 2;
+            if (edgeKey(mesh, h1) < edgeKey(mesh, h0)) {
+              h1 = h0;
+              h0 = h + 2;
+            }
+          }
 
-      ITri tri = new ITri(ab, bc, ca);
+          pushNeighbour(open, h0);
+          pushNeighbour(open, h1);
+          pushNeighbour(open, h2);
+        }
+      }
+    }
 
-      tris.add(tri);
+    // Minimum degree greedy: repeatedly removes the triangle with the fewest undecided
+    // neighbours and keeps those neighbours, so every removal blocks as few others as possible.
+    // Removed triangles never share an edge, the result stays reconstructable.
+    private void greedy() {
+      int n = end - start;
 
-      rec.addFace(a, b, c);
+      // Seams and edge cases are decided up front, they are never removed here.
+      for (int i = 0; i < n; i++) {
+        int tri = global(i);
 
-      edgeTriLut.computeIfAbsent(ab, key -> new ArrayList<>()).add(tri);
-      edgeTriLut.computeIfAbsent(bc, key -> new ArrayList<>()).add(tri);
-      edgeTriLut.computeIfAbsent(ca, key -> new ArrayList<>()).add(tri);
+        if (isSeam(tri)) {
+          visited.set(i);
+          numVisited++;
+          addSeam(tri);
+        }
+      }
 
-      nodeEdgeLut.computeIfAbsent(a, key -> new ArrayList<>()).add(ab);
-      nodeEdgeLut.computeIfAbsent(b, key -> new ArrayList<>()).add(ab);
-      nodeEdgeLut.computeIfAbsent(b, key -> new ArrayList<>()).add(bc);
-      nodeEdgeLut.computeIfAbsent(c, key -> new ArrayList<>()).add(bc);
-      nodeEdgeLut.computeIfAbsent(c, key -> new ArrayList<>()).add(ca);
-      nodeEdgeLut.computeIfAbsent(a, key -> new ArrayList<>()).add(ca);
-    }
+      for (int i = visited.nextClearBit(0); i < n; i = visited.nextClearBit(i + 1)) {
+        if (isEdgeCase(mesh, global(i), edgeCases)) {
+          visited.set(i);
+          numVisited++;
+          edgeCaseRejections++;
+          kept[numKept++] = global(i);
+        }
+      }
 
-    for (IEdge c : edgeTriLut.keySet()) {
+      // Undecided neighbours of every undecided triangle, bucketed by that count.
+      byte[] degree = new byte[n];
+      IntBuckets buckets = new IntBuckets(4, n);
 
-      if (edgeTriLut.get(c).size() == 2) {
-        continue;
+      for (int i = visited.nextClearBit(0); i < n; i = visited.nextClearBit(i + 1)) {
+        for (int k = 0; k < 3; k++) {
+          int j = neighbour(i, k);
+
+          if (j >= 0 && !visited.get(j)) {
+            degree[i]++;
+          }
+        }
+        buckets.push(degree[i], i);
       }
 
-      for (IEdge a : nodeEdgeLut.get(c.a)) {
+      int d = 0;
 
-        if (c.equals(a)) {
+      while (d < 4) {
+        if (buckets.isEmpty(d)) {
+          d++;
           continue;
         }
 
-        if (edgeTriLut.get(c).size() == 2) {
-          break;
-        }
+        int i = buckets.pop(d);
 
-        if (edgeTriLut.get(a).size() == 2) {
+        // Stale entry, the triangle was decided or its degree dropped since it was pushed.
+        if (visited.get(i) || degree[i] != d) {
           continue;
         }
 
-        for (IEdge b : nodeEdgeLut.get(c.b)) {
-
-          if (c.equals(b) || a.equals(b)) {
-            continue;
-          }
-
-          if (edgeTriLut.get(c).size() == 2) {
-            break;
-          }
+        visited.set(i);
+        removed.set(i);
+        numVisited++;
 
-          if (edgeTriLut.get(a).size() == 2) {
-            break;
-          }
+        for (int k = 0; k < 3; k++) {
+          int j = neighbour(i, k);
 
-          if (edgeTriLut.get(b).size() == 2) {
+          if (j < 0 || visited.get(j)) {
             continue;
           }
 
-          if (a.touches(b) && a.touches(c) && b.touches(c)) {
-            ITri tri = new ITri(a, b, c);
+          visited.set(j);
+          numVisited++;
+          kept[numKept++] = global(j);
 
-            // Ignore existing triangles.
-            if (edgeTriLut.get(a).contains(tri)) {
-              continue;
+          for (int l = 0; l < 3; l++) {
+            int m = neighbour(j, l);
+
+            if (m >= 0 && !visited.get(m)) {
+              degree[m]--;
+              buckets.push(degree[m], m);
+              d = Math.min(d, degree[m]);
             }
+          }
+        }
+      }
+    }
 
-            ITri existing = edgeTriLut.get(a).get(0);
-            boolean swap = false;
+    // Position of the neighbour across edge k of the triangle at position i, -1 outside the patch.
+    private int neighbour(int i, int k) {
+      int g = mesh.twin[global(i) * 3 + k];
 
-            if (normal(existing, n).dot(normal(tri, n)) < 0) {
-              swap = true;
-            }
+      return g >= 0 && contains(g / 3) ? local(g / 3) : -1;
+    }
 
-            if (swap) {
-              tri.reverse();
-            }
+    private void addSeam(int tri) {
+      if (numSeams == seams.length) {
+        seams = Arrays.copyOf(seams, seams.length * 2);
+      }
+      seams[numSeams++] = tri;
+    }
 
-            tris.add(tri);
+    private boolean isSeam(int tri) {
+      if (pinned != null && pinned.get(tri)) {
+        return true;
+      }
 
-            int fa = tri._ab.getCommon(tri._bc);
-            int fb = tri._bc.getCommon(tri._ca);
-            int fc = tri._ca.getCommon(tri._ab);
+      for (int h = tri * 3; h < tri * 3 + 3; h++) {
+        if (mesh.twin[h] < 0 || !contains(mesh.twin[h] / 3)) {
+          return true;
+        }
+      }
+      return false;
+    }
 
-            rec.addFace(fa, fb, fc);
+    private boolean canRemove(int tri) {
 
-            edgeTriLut.get(a).add(tri);
-            edgeTriLut.get(b).add(tri);
-            edgeTriLut.get(c).add(tri);
-          }
+      // A triangle can safely be removed if the edges reference one other triangle. Both
+      // triangles on an edge are alive exactly when the one across the twin is not removed.
+      for (int h = tri * 3; h < tri * 3 + 3; h++) {
+        if (removed.get(local(mesh.twin[h] / 3))) {
+          return false;
         }
       }
+
+      return true;
     }
 
-    Obj3d.writeObj(rec, recObj);
+    private void pushNeighbour(TriOrder open, int h) {
+      int t = mesh.twin[h] / 3;
 
-    int s = 0;
-    for (IEdge e : edgeTriLut.keySet()) {
-      if (edgeTriLut.get(e).size() != 2) {
-        s++;
+      if (mesh.twin[h] >= 0 && contains(t)) {
+        int i = local(t);
+
+        if (!visited.get(i) && !removed.get(i)) {
+          open.push(i);
+        }
       }
     }
+  }
 
-    System.out.println("Num. of problematic edges: " + s);
-    System.out.println("Num. of triangles: " + tris.size());
-    System.out.println();
+  // Decides which triangles of a patch are removed, selected with -Dtocos.strategy. The stack is
+  // a depth first traversal in sorted edge order, bfs visits the triangles breadth first and
+  // greedy removes the triangles with the fewest undecided neighbours first.
+  private interface Strategy {
+    void decimate(Patch patch);
   }
 
-  private static Vector3f normal(ITri tri, Nodify3d n) {
+  private static final Map<String, Strategy> STRATEGIES =
+      Map.of(
+          "stack",
+          patch ->
+              patch.traverse(
+                  new TriStack(
+                      patch.ints(Scratch.BELOW), patch.ints(Scratch.ABOVE), patch.size())),
+          "bfs",
+          patch -> patch.traverse(new TriQueue(patch.ints(Scratch.BELOW), patch.size())),
+          "greedy", Patch::greedy);
+
+  private static Strategy strategy(String name) throws IOException {
+    Strategy strategy = STRATEGIES.get(name);
+
+    if (strategy == null) {
+      throw new IOException(
+          "Unknown decimation strategy " + name + ", use stack, bfs or greedy.");
+    }
 
-    int a = tri._ab.getCommon(tri._bc);
-    int b = tri._bc.getCommon(tri._ca);
-    int c = tri._ca.getCommon(tri._ab);
+    return strategy;
+  }
 
-    Vector3f ab = new Vector3f(n.decode(b)).sub(n.decode(a));
-    Vector3f ac = new Vector3f(n.decode(c)).sub(n.decode(a));
+  // Open list of the triangles a traversal still has to visit.
+  private interface TriOrder {
+    boolean isEmpty();
 
-    return ab.cross(ac).normalize();
-  }
+    void push(int t);
 
-  public static void obj2target(Obj3d obj, File stl) throws IOException {
-    File dummy = new File("dummy.obj");
-    Obj3d.saveAs(Obj3d.writeObj(obj, dummy), stl.getAbsolutePath());
-    dummy.delete();
+    int pop();
   }
 
-  private static void tbinToObj(File tbinFile, File objFile) throws IOException {
+  // First in, first out queue of triangles, a triangle is queued at most once.
+  private static class TriQueue implements TriOrder {
+    private final int[] queue;
+    private final BitSet queued;
+    private int head = 0;
+    private int tail = 0;
 
-    DataInputStream in = new DataInputStream(new FileInputStream(tbinFile));
-    int numVerts = in.readInt();
-    Obj3d obj = new Obj3d();
+    public TriQueue(int[] queue, int size) {
+      this.queue = queue;
+      queued = new BitSet(size);
+    }
 
-    for (int i = 0; i < numVerts; i++) {
-      float x = in.readFloat();
-      float y = in.readFloat();
-      float z = in.readFloat();
+    @Override
+    public boolean isEmpty() {
+      return head == tail;
+    }
 
-      obj.addVertex(x, y, z);
+    @Override
+    public void push(int t) {
+      if (!queued.get(t)) {
+        queued.set(t);
+        queue[tail++] = t;
+      }
     }
 
-    while (true) {
-      try {
-        int a = in.readInt();
-        int b = in.readInt();
-        int c = in.readInt();
+    @Override
+    public int pop() {
+      return queue[head++];
+    }
+  }
 
-        obj.addFace(a, b, c);
+  // Stacks of ints for small keys, used as a priority queue with lazy deletion.
+  private static class IntBuckets {
+    private final int[][] buckets;
+    private final int[] sizes;
 
-      } catch (EOFException e) {
-        break;
+    public IntBuckets(int keys, int capacity) {
+      buckets = new int[keys][];
+      sizes = new int[keys];
+
+      for (int k = 0; k < keys; k++) {
+        buckets[k] = new int[Math.max(16, capacity / keys)];
       }
     }
 
-    in.close();
+    public boolean isEmpty(int key) {
+      return sizes[key] == 0;
+    }
 
-    Obj3d.writeObj(obj, objFile);
+    public void push(int key, int value) {
+      if (sizes[key] == buckets[key].length) {
+        buckets[key] = Arrays.copyOf(buckets[key], buckets[key].length * 2);
+      }
+      buckets[key][sizes[key]++] = value;
+    }
 
-    System.out.println("Num faces from triangles: " + obj.getNumFaces());
+    public int pop(int key) {
+      return buckets[key][--sizes[key]];
+    }
   }
 
-  private static final String ext = "CoToS";
+  // Orders the triangles along a Z-order curve through their centroids.
+  private static int[] mortonOrder(HalfEdgeMesh mesh) {
+    float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
 
-  private static void printUsage() {
-    System.out.println(
-        "Compress: c input.[obj|stl|...any assimp supported format]. Example: c sphere.obj (will compress sphere.obj in to sphere.obj.CoToS)");
-    System.out.println("Decompress: d input.[obj|stl|...any assimp supported format].CoToS");
-  }
+    for (int i = 0; i < mesh.numVertices * 3; i++) {
+      min[i % 3] = Math.min(min[i % 3], mesh.vertices[i]);
+      max[i % 3] = Math.max(max[i % 3], mesh.vertices[i]);
+    }
 
-  public static void main(String[] args) {
+    long[] keys = new long[mesh.numTris];
 
-    if (args.length != 2) {
-      printUsage();
-    } else if (args[0].equals("c")) {
+    for (int t = 0; t < mesh.numTris; t++) {
+      int code = 0;
+
+      for (int k = 0; k < 3; k++) {
+        float c =
+            (mesh.vertices[mesh.tris[t * 3] * 3 + k]
+                    + mesh.vertices[mesh.tris[t * 3 + 1] * 3 + k]
+                    + mesh.vertices[mesh.tris[t * 3 + 2] * 3 + k])
+                / 3;
+        float extent = max[k] - min[k];
+        int cell = extent > 0 ? (int) Math.min(1023, (c - min[k]) / extent * 1024) : 0;
+
+        code |= spreadBits(cell) << k;
+      }
+
+      keys[t] = ((long) code << 32) | t;
+    }
+
+    Arrays.parallelSort(keys);
+
+    int[] order = new int[mesh.numTris];
+
+    for (int i = 0; i < mesh.numTris; i++) {
+      order[i] = (int) keys[i];
+    }
+
+    return order;
+  }
+
+  // A copy of the mesh with the vertices numbered along a Morton curve and the triangles sorted by
+  // their smallest vertex, so neighbours in space are close in memory. Every triangle is rotated
+  // to start at its smallest vertex, which keeps its winding and makes the index deltas of the
+  // .CoToS small.
+  @SuppressWarnings("try")
+  private static Obj3d reorder(Obj3d obj, Stats stats) {
+    try (Stats.Timer t = stats.time("reorder")) {
+      int nv = obj.numVertices;
+      int nt = obj.numFaces;
+      float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+      float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+      for (int i = 0; i < nv * 3; i++) {
+        min[i % 3] = Math.min(min[i % 3], obj.vertices[i]);
+        max[i % 3] = Math.max(max[i % 3], obj.vertices[i]);
+      }
+
+      long[] keys = new long[Math.max(nv, nt)];
+
+      for (int v = 0; v < nv; v++) {
+        int code = 0;
+
+        for (int k = 0; k < 3; k++) {
+          float extent = max[k] - min[k];
+          float c = obj.vertices[v * 3 + k];
+          int cell = extent > 0 ? (int) Math.min(1023, (c - min[k]) / extent * 1024) : 0;
+
+          code |= spreadBits(cell) << k;
+        }
+
+        keys[v] = ((long) code << 32) | v;
+      }
+
+      Arrays.parallelSort(keys, 0, nv);
+
+      Obj3d sorted = new Obj3d();
+      int[] id = new int[nv];
+
+      sorted.name = obj.name;
+      sorted.vertices = new float[nv * 3];
+      sorted.numVertices = nv;
+
+      for (int i = 0; i < nv; i++) {
+        int v = (int) keys[i];
+        id[v] = i;
+        System.arraycopy(obj.vertices, v * 3, sorted.vertices, i * 3, 3);
+      }
+
+      int[] faces = new int[nt * 3];
+
+      for (int f = 0; f < nt; f++) {
+        int a = id[obj.faces[f * 3]];
+        int b = id[obj.faces[f * 3 + 1]];
+        int c = id[obj.faces[f * 3 + 2]];
+
+        if (b < a && b < c) {
+          faces[f * 3] = b;
+          faces[f * 3 + 1] = c;
+          faces[f * 3 + 2] = a;
+        } else if (c < a && c < b) {
+          faces[f * 3] = c;
+          faces[f * 3 + 1] = a;
+          faces[f * 3 + 2] = b;
+        } else {
+          faces[f * 3] = a;
+          faces[f * 3 + 1] = b;
+          faces[f * 3 + 2] = c;
+        }
+
+        keys[f] = ((long) faces[f * 3] << 32) | f;
+      }
+
+      Arrays.parallelSort(keys, 0, nt);
+
+      sorted.faces = new int[nt * 3];
+      sorted.numFaces = nt;
+
+      for (int i = 0; i < nt; i++) {
+        System.arraycopy(faces, (int) keys[i] * 3, sorted.faces, i * 3, 3);
+      }
+
+      return sorted;
+    }
+  }
+
+  // Spreads the lower 10 bits of v so that two zero bits follow each of them.
+  private static int spreadBits(int v) {
+    v = (v | (v << 16)) & 0x030000FF;
+    v = (v | (v << 8)) & 0x0300F00F;
+    v = (v | (v << 4)) & 0x030C30C3;
+    v = (v | (v << 2)) & 0x09249249;
+    return v;
+  }
+
+  // Stack of triangles as an intrusive doubly linked list. Pushing a triangle which is already on
+  // the stack moves it to the top, so the pops come in the same order as when it is pushed again,
+  // but no triangle is ever on the stack twice.
+  private static class TriStack implements TriOrder {
+    private static final int NONE = -1;
+    private static final int UNLISTED = -2;
+
+    private final int[] below;
+    private final int[] above;
+    private int top = NONE;
+
+    public TriStack(int[] below, int[] above, int size) {
+      this.below = below;
+      this.above = above;
+
+      Arrays.fill(below, 0, size, UNLISTED);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return top == NONE;
+    }
+
+    @Override
+    public void push(int t) {
+      if (t == top) {
+        return;
+      }
+
+      if (below[t] != UNLISTED) {
+        // Unlink, t is not the top so something lies above it.
+        int b = below[t];
+        int a = above[t];
+
+        if (b != NONE) {
+          above[b] = a;
+        }
+        below[a] = b;
+      }
+
+      below[t] = top;
+      above[t] = NONE;
+
+      if (top != NONE) {
+        above[top] = t;
+      }
+
+      top = t;
+    }
+
+    @Override
+    public int pop() {
+      int t = top;
+
+      top = below[t];
+      below[t] = UNLISTED;
+
+      if (top != NONE) {
+        above[top] = NONE;
+      }
+
+      return t;
+    }
+  }
+
+  @SuppressWarnings("try")
+  protected static File dumpTriangles(Obj3d obj, String prefix, Options options, Stats stats)
+      throws IOException {
+
+    if (!options.dump) {
+      return null;
+    }
+
+    try (Stats.Timer t = stats.time("dump")) {
+      return dumpTriangles(obj, prefix);
+    }
+  }
+
+  private static File dumpTriangles(Obj3d obj, String prefix) throws IOException {
+
+    File target = new File("dump/" + prefix + "_decimated.tbin");
+
+    target.getParentFile().mkdirs();
+
+    TBin.write(obj, target);
+
+    System.out.println("Num triangles: " + obj.numFaces);
+
+    return target;
+  }
+
+  // A mesh written as it is produced, all vertices first, then the faces.
+  private interface MeshOutput extends Closeable {
+    void vertex(float x, float y, float z) throws IOException;
+
+    void face(int a, int b, int c) throws IOException;
+
+    int getNumFaces();
+  }
+
+  // Triangle dump: int vertex count, int triangle count, the vertex floats and the index ints,
+  // all big endian. Read and written through memory mapped windows of the file.
+  static class TBin {
+    private static final int HEADER = 8;
+    // Elements per mapped window, a window stays below 2 GB.
+    private static final int WINDOW = 1 << 28;
+
+    // Streams a tbin file, the face count of the header is filled in on close.
+    static class Writer implements MeshOutput {
+      private final File file;
+      private final DataOutputStream out;
+      private int numFaces = 0;
+
+      public Writer(File file, int numVertices) throws IOException {
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(numVertices);
+        out.writeInt(0);
+      }
+
+      @Override
+      public void vertex(float x, float y, float z) throws IOException {
+        out.writeFloat(x);
+        out.writeFloat(y);
+        out.writeFloat(z);
+      }
+
+      @Override
+      public void face(int a, int b, int c) throws IOException {
+        out.writeInt(a);
+        out.writeInt(b);
+        out.writeInt(c);
+        numFaces++;
+      }
+
+      @Override
+      public int getNumFaces() {
+        return numFaces;
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+          raf.seek(4);
+          raf.writeInt(numFaces);
+        }
+      }
+    }
+
+    public static void write(Obj3d obj, File file) throws IOException {
+      try (FileChannel channel =
+          FileChannel.open(
+              file.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        // Every window is unmapped once it is filled, so the file is free again on return.
+        MappedByteBuffer header = channel.map(MapMode.READ_WRITE, 0, HEADER);
+        header.putInt(obj.numVertices).putInt(obj.numFaces);
+        unmap(header);
+
+        long position = HEADER;
+
+        for (int i = 0; i < obj.numVertices * 3; i += WINDOW) {
+          int n = Math.min(WINDOW, obj.numVertices * 3 - i);
+          MappedByteBuffer window = channel.map(MapMode.READ_WRITE, position, n * 4L);
+          window.asFloatBuffer().put(obj.vertices, i, n);
+          unmap(window);
+          position += n * 4L;
+        }
+
+        for (int i = 0; i < obj.numFaces * 3; i += WINDOW) {
+          int n = Math.min(WINDOW, obj.numFaces * 3 - i);
+          MappedByteBuffer window = channel.map(MapMode.READ_WRITE, position, n * 4L);
+          window.asIntBuffer().put(obj.faces, i, n);
+          unmap(window);
+          position += n * 4L;
+        }
+      }
+    }
+
+    public static Obj3d read(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        if (channel.size() < HEADER) {
+          throw new IOException("Truncated tbin file: " + file);
+        }
+
+        MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER);
+
+        Obj3d obj = new Obj3d();
+        obj.numVertices = header.getInt();
+        obj.numFaces = header.getInt();
+        unmap(header);
+
+        if (channel.size() != HEADER + (obj.numVertices + (long) obj.numFaces) * 12) {
+          throw new IOException("Invalid tbin file size: " + file);
+        }
+
+        obj.vertices = new float[obj.numVertices * 3];
+        obj.faces = new int[obj.numFaces * 3];
+
+        long position = HEADER;
+
+        for (int i = 0; i < obj.vertices.length; i += WINDOW) {
+          int n = Math.min(WINDOW, obj.vertices.length - i);
+          MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, n * 4L);
+          window.asFloatBuffer().get(obj.vertices, i, n);
+          unmap(window);
+          position += n * 4L;
+        }
+
+        for (int i = 0; i < obj.faces.length; i += WINDOW) {
+          int n = Math.min(WINDOW, obj.faces.length - i);
+          MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, n * 4L);
+          window.asIntBuffer().get(obj.faces, i, n);
+          unmap(window);
+          position += n * 4L;
+        }
+
+        return obj;
+      }
+    }
+  }
+
+  // Out-of-core compression of an indexed tbin mesh which does not fit in the heap. Vertices,
+  // faces and the scratch arrays stay in memory mapped files. The triangles are bucketed along a
+  // Z-order curve through their centroids and cut into chunks of about chunkTriangles, only one
+  // chunk is on the heap at a time. A chunk is decimated like a patch: a triangle is only removed
+  // when the whole fan of each of its vertices lies in the chunk, so the neighbours and edge cases
+  // it depends on are all known, the other triangles are kept. Kept triangles are streamed to the
+  // .CoToS file as soon as their chunk is done.
+  static class OutOfCore {
+    // Cells per axis of the grid the triangles are bucketed by.
+    private static final int GRID_BITS = 7;
+
+    // Every level but the last writes the kept triangles to a tbin file next to the target, which
+    // the next level reads. A later level only removes triangles whose neighbours all survived,
+    // the ones earlier levels kept at chunk borders, so the holes of all levels are restored in
+    // one pass.
+    public static void compress(File src, File target, Options options, Stats stats)
+        throws IOException {
+      String name = FilenameUtils.getBaseName(src.getName());
+      Stats meshStats = stats.mesh(name);
+      int levels = Math.max(1, options.levels);
+      File input = src;
+
+      try {
+        for (int level = 1; level <= levels; level++) {
+          File output =
+              level == levels
+                  ? target
+                  : File.createTempFile(
+                      "tocos", ".tbin", target.getAbsoluteFile().getParentFile());
+
+          compress(input, output, level, levels, name, options, meshStats);
+
+          if (input != src) {
+            deleteScratch(input);
+          }
+          input = output;
+        }
+      } finally {
+        if (input != src && input != target) {
+          deleteScratch(input);
+        }
+      }
+
+      meshStats.count("levels", levels);
+    }
+
+    @SuppressWarnings("try")
+    private static void compress(
+        File src,
+        File target,
+        int level,
+        int levels,
+        String name,
+        Options options,
+        Stats meshStats)
+        throws IOException {
+      // Scratch files next to the target, the temporary directory may be too small.
+      File dir = target.getAbsoluteFile().getParentFile();
+      File orderFile = File.createTempFile("tocos", ".order", dir);
+      File valenceFile = File.createTempFile("tocos", ".valence", dir);
+      File localFile = File.createTempFile("tocos", ".local", dir);
+
+      try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+          FileChannel orderChannel =
+              FileChannel.open(
+                  orderFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+          FileChannel valenceChannel =
+              FileChannel.open(
+                  valenceFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+          FileChannel localChannel =
+              FileChannel.open(
+                  localFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        if (in.size() < TBin.HEADER) {
+          throw new IOException("Truncated tbin file: " + src);
+        }
+
+        MappedByteBuffer header = in.map(MapMode.READ_ONLY, 0, TBin.HEADER);
+        int numVertices = header.getInt();
+        int numFaces = header.getInt();
+        unmap(header);
+
+        if (in.size() != TBin.HEADER + (numVertices + (long) numFaces) * 12) {
+          throw new IOException("Invalid tbin file size: " + src);
+        }
+
+        // The mappings are released before the scratch files are deleted.
+        try (MappedInts vertices =
+                new MappedInts(in, MapMode.READ_ONLY, TBin.HEADER, numVertices * 3L);
+            MappedInts faces =
+                new MappedInts(
+                    in, MapMode.READ_ONLY, TBin.HEADER + numVertices * 12L, numFaces * 3L);
+            MappedInts order = new MappedInts(orderChannel, MapMode.READ_WRITE, 0, numFaces);
+            MappedInts valence =
+                new MappedInts(valenceChannel, MapMode.READ_WRITE, 0, numVertices);
+            // Local number of every vertex in the chunk being decimated.
+            MappedInts local = new MappedInts(localChannel, MapMode.READ_WRITE, 0, numVertices)) {
+          float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+          float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+
+          try (Stats.Timer t = meshStats.time("bounds")) {
+            for (long i = 0; i < numVertices * 3L; i++) {
+              float c = vertices.getFloat(i);
+              min[(int) (i % 3)] = Math.min(min[(int) (i % 3)], c);
+              max[(int) (i % 3)] = Math.max(max[(int) (i % 3)], c);
+            }
+
+            // Triangles around every vertex, a chunk holds the whole fan when it has as many.
+            for (long i = 0; i < numFaces * 3L; i++) {
+              int v = faces.get(i);
+
+              if (v < 0 || v >= numVertices) {
+                throw new IOException("Invalid vertex index " + v + " in " + src);
+              }
+              valence.put(v, valence.get(v) + 1);
+            }
+          }
+
+          // Counting sort of the triangles by their grid cell along the curve.
+          int[] offsets = new int[(1 << (GRID_BITS * 3)) + 1];
+
+          try (Stats.Timer t = meshStats.time("order")) {
+            for (int f = 0; f < numFaces; f++) {
+              offsets[cell(vertices, faces, f, min, max) + 1]++;
+            }
+
+            for (int c = 1; c < offsets.length; c++) {
+              offsets[c] += offsets[c - 1];
+            }
+
+            int[] fill = Arrays.copyOf(offsets, offsets.length - 1);
+
+            for (int f = 0; f < numFaces; f++) {
+              order.put(fill[cell(vertices, faces, f, min, max)]++, f);
+            }
+          }
+
+          Strategy strategy = strategy(options.strategy);
+          // One set of scratch arrays serves every chunk.
+          Scratch scratch = new Scratch();
+
+          try (MeshOutput out =
+              level == levels
+                  ? new CoToSFile.MeshWriter(target, name, numVertices, min, max, options)
+                  : new TBin.Writer(target, numVertices)) {
+            try (Stats.Timer t = meshStats.time("write")) {
+              for (long i = 0; i < numVertices * 3L; i += 3) {
+                out.vertex(
+                    vertices.getFloat(i), vertices.getFloat(i + 1), vertices.getFloat(i + 2));
+              }
+            }
+
+            // Later levels cut their first chunk short, so that their chunk borders, where the
+            // triangles are kept, fall elsewhere than the ones of the level before.
+            int first =
+                level == 1
+                    ? options.chunkTriangles
+                    : Math.max(1, (int) (options.chunkTriangles * ((level - 1) * 0.618 % 1)));
+            int[] ends = chunkEnds(offsets, first, Math.max(1, options.chunkTriangles));
+            int chunks = ends.length;
+            int start = 0;
+
+            for (int end : ends) {
+              decimateChunk(
+                  vertices,
+                  faces,
+                  order,
+                  valence,
+                  local,
+                  start,
+                  end,
+                  options,
+                  strategy,
+                  scratch,
+                  out,
+                  meshStats);
+              start = end;
+            }
+
+            meshStats.count("chunks", chunks);
+            meshStats.count("removed", numFaces - out.getNumFaces());
+
+            if (level == 1) {
+              meshStats.count("trianglesBefore", numFaces);
+            } else {
+              meshStats.count("removedLevel" + level, numFaces - out.getNumFaces());
+            }
+
+            if (level == levels) {
+              meshStats.count("trianglesAfter", out.getNumFaces());
+            }
+          }
+        }
+      } finally {
+        deleteScratch(orderFile);
+        deleteScratch(valenceFile);
+        deleteScratch(localFile);
+      }
+    }
+
+    // Ends of the chunks in the order of the triangles. Chunks end on cell boundaries and hold at
+    // most chunk triangles, the first one at most first. A cell with more triangles than a chunk
+    // holds is split.
+    private static int[] chunkEnds(int[] offsets, int first, int chunk) {
+      int[] ends = new int[16];
+      int numEnds = 0;
+      int start = 0;
+      int limit = first;
+
+      for (int c = 1; c < offsets.length; c++) {
+        while (offsets[c] - start > limit) {
+          // Close the chunk before this cell, or split the cell when it opens the chunk.
+          int end = offsets[c - 1] > start ? offsets[c - 1] : start + limit;
+
+          if (numEnds == ends.length) {
+            ends = Arrays.copyOf(ends, numEnds * 2);
+          }
+          ends[numEnds++] = end;
+          start = end;
+          limit = chunk;
+        }
+      }
+
+      if (offsets[offsets.length - 1] > start) {
+        if (numEnds == ends.length) {
+          ends = Arrays.copyOf(ends, numEnds + 1);
+        }
+        ends[numEnds++] = offsets[offsets.length - 1];
+      }
+
+      return Arrays.copyOf(ends, numEnds);
+    }
+
+    // Grid cell of the centroid of triangle f, in Z-order.
+    private static int cell(
+        MappedInts vertices, MappedInts faces, int f, float[] min, float[] max) {
+      int code = 0;
+
+      for (int k = 0; k < 3; k++) {
+        float c =
+            (vertices.getFloat(faces.get(f * 3L) * 3L + k)
+                    + vertices.getFloat(faces.get(f * 3L + 1) * 3L + k)
+                    + vertices.getFloat(faces.get(f * 3L + 2) * 3L + k))
+                / 3;
+        float extent = max[k] - min[k];
+        int cells = 1 << GRID_BITS;
+        int cell = extent > 0 ? (int) Math.min(cells - 1, (c - min[k]) / extent * cells) : 0;
+
+        code |= spreadBits(cell) << k;
+      }
+
+      return code;
+    }
+
+    @SuppressWarnings("try")
+    private static void decimateChunk(
+        MappedInts vertices,
+        MappedInts faces,
+        MappedInts order,
+        MappedInts valence,
+        MappedInts local,
+        int start,
+        int end,
+        Options options,
+        Strategy strategy,
+        Scratch scratch,
+        MeshOutput out,
+        Stats stats)
+        throws IOException {
+      int n = end - start;
+      int[] global = new int[n * 3];
+      Patch patch;
+
+      try (Stats.Timer t = stats.time("topology")) {
+        for (int i = 0; i < n; i++) {
+          int f = order.get(start + i);
+
+          for (int k = 0; k < 3; k++) {
+            global[i * 3 + k] = faces.get(f * 3L + k);
+          }
+        }
+
+        // Number the vertices of the chunk in the order they are met. The local number of a
+        // vertex is only trusted when ids maps it back, so the scratch array is never cleared.
+        int[] ids = new int[n * 3];
+        int[] tris = new int[n * 3];
+        int numVertices = 0;
+
+        for (int i = 0; i < n * 3; i++) {
+          int v = global[i];
+          int l = local.get(v);
+
+          if (l >= numVertices || ids[l] != v) {
+            l = numVertices++;
+            ids[l] = v;
+            local.put(v, l);
+          }
+          tris[i] = l;
+        }
+
+        float[] coordinates = new float[numVertices * 3];
+
+        for (int v = 0; v < numVertices; v++) {
+          for (int k = 0; k < 3; k++) {
+            coordinates[v * 3 + k] = vertices.getFloat(ids[v] * 3L + k);
+          }
+        }
+
+        HalfEdgeMesh mesh = new HalfEdgeMesh(coordinates, numVertices, tris, n, false, scratch);
+
+        // A triangle touching a vertex whose fan leaves the chunk is kept.
+        BitSet pinned = new BitSet(n);
+
+        for (int h = 0; h < n * 3; h++) {
+          int v = tris[h];
+
+          if (mesh.vertexOffsets[v + 1] - mesh.vertexOffsets[v] != valence.get(ids[v])) {
+            pinned.set(h / 3);
+          }
+        }
+
+        byte[] edgeCases = null;
+
+        if (options.checkForInvalidTriangles) {
+          edgeCases = scratch.clearedBytes(n * 3);
+          mesh.sortNeighbours();
+        }
+
+        patch = new Patch(mesh, null, null, 0, n, edgeCases, strategy, scratch);
+        patch.pinned = pinned;
+
+        stats.count("pinned", pinned.cardinality());
+      }
+
+      try (Stats.Timer t = stats.time("decimate")) {
+        patch.run();
+      }
+
+      // The kept triangles are written in the order of the input, not of the traversal, so every
+      // level keeps the order of the one before and the index deltas stay small. A key holds the
+      // input position above the chunk position.
+      try (Stats.Timer t = stats.time("write")) {
+        long[] written = new long[patch.numKept + patch.numSeams];
+
+        for (int i = 0; i < patch.numKept; i++) {
+          int tri = patch.kept[i];
+          written[i] = (long) order.get(start + tri) << 32 | tri;
+        }
+
+        for (int i = 0; i < patch.numSeams; i++) {
+          int tri = patch.seams[i];
+          written[patch.numKept + i] = (long) order.get(start + tri) << 32 | tri;
+        }
+
+        Arrays.sort(written);
+
+        for (long key : written) {
+          int tri = (int) key;
+          out.face(global[tri * 3], global[tri * 3 + 1], global[tri * 3 + 2]);
+        }
+      }
+
+      stats.count("visited", patch.numVisited);
+      stats.count("edgeCaseRejections", patch.edgeCaseRejections);
+    }
+  }
+
+  // Ints of a file region, or floats stored as their bits, mapped in windows so that the region
+  // may exceed 2 GB. Closing unmaps the windows.
+  private static class MappedInts implements Closeable {
+    private static final int WINDOW_BITS = 28;
+
+    private final MappedByteBuffer[] mapped;
+    private final IntBuffer[] windows;
+
+    public MappedInts(FileChannel channel, MapMode mode, long position, long count)
+        throws IOException {
+      mapped = new MappedByteBuffer[(int) ((count + (1L << WINDOW_BITS) - 1) >>> WINDOW_BITS)];
+      windows = new IntBuffer[mapped.length];
+
+      for (int w = 0; w < windows.length; w++) {
+        long n = Math.min(1L << WINDOW_BITS, count - ((long) w << WINDOW_BITS));
+        mapped[w] = channel.map(mode, position + ((long) w << (WINDOW_BITS + 2)), n * 4);
+        windows[w] = mapped[w].asIntBuffer();
+      }
+    }
+
+    @Override
+    public void close() {
+      for (MappedByteBuffer buffer : mapped) {
+        unmap(buffer);
+      }
+    }
+
+    public int get(long i) {
+      return windows[(int) (i >>> WINDOW_BITS)].get((int) i & ((1 << WINDOW_BITS) - 1));
+    }
+
+    public float getFloat(long i) {
+      return Float.intBitsToFloat(get(i));
+    }
+
+    public void put(long i, int value) {
+      windows[(int) (i >>> WINDOW_BITS)].put((int) i & ((1 << WINDOW_BITS) - 1), value);
+    }
+  }
+
+  // Print the statistics of every mesh, -Dtocos.quiet=true turns them off.
+  private static final boolean VERBOSE = !Boolean.getBoolean("tocos.quiet");
+  // Append a JSON report of every file to this file, -Dtocos.report=<file>.
+  private static final String REPORT = System.getProperty("tocos.report");
+  // Scratch arrays of the command line, shared by the files of a batch.
+  private static final ScratchPool SCRATCH = new ScratchPool();
+
+  // Switches of one compression or decompression. Immutable, every with method returns a copy, so
+  // an instance can be shared by any number of concurrent calls.
+  public static final class Options {
+    // The switches of the command line, set with the -Dtocos.* system properties.
+    public static final Options DEFAULT = new Options(new Builder());
+
+    // Dump the decimated triangles to dump/<name>_decimated.tbin for debugging.
+    private final boolean dump;
+    private final boolean checkForInvalidTriangles;
+    private final boolean parallelWeld;
+    // Number of patches decimated concurrently, 1 decimates the whole mesh in one pass.
+    private final int partitions;
+    // Order in which the triangles are decided, stack, bfs or greedy.
+    private final String strategy;
+    // Search the holes of large meshes concurrently while decompressing.
+    private final boolean parallelReconstruction;
+    // Deflate the payload of the .CoToS container.
+    private final boolean entropyCoding;
+    // Compress tbin files out of core, -Dtocos.outOfCore=true.
+    private final boolean outOfCore;
+    // Triangles of a chunk on the heap while compressing out of core, -Dtocos.chunk.
+    private final int chunkTriangles;
+    // Write decompressed obj and stl files triangle by triangle, -Dtocos.stream=true.
+    private final boolean streaming;
+    // Renumber the vertices and triangles along a Morton curve before decimating, and write the
+    // kept triangles in that order, -Dtocos.reorder=true.
+    private final boolean reorder;
+    // Out-of-core decimation passes, each over the triangles the one before kept,
+    // -Dtocos.levels.
+    private final int levels;
+
+    private Options(Builder b) {
+      this.dump = b.dump;
+      this.checkForInvalidTriangles = b.checkForInvalidTriangles;
+      this.parallelWeld = b.parallelWeld;
+      this.partitions = b.partitions;
+      this.strategy = b.strategy;
+      this.parallelReconstruction = b.parallelReconstruction;
+      this.entropyCoding = b.entropyCoding;
+      this.outOfCore = b.outOfCore;
+      this.chunkTriangles = b.chunkTriangles;
+      this.streaming = b.streaming;
+      this.reorder = b.reorder;
+      this.levels = b.levels;
+    }
+
+    // The fields of a new Options, the command line switches unless copied from another one. Each
+    // wither changes one field on a copy.
+    private static final class Builder {
+      private boolean dump = false;
+      private boolean checkForInvalidTriangles = true;
+      private boolean parallelWeld = true;
+      private int partitions = Integer.getInteger("tocos.partitions", 1);
+      private String strategy = System.getProperty("tocos.strategy", "stack");
+      private boolean parallelReconstruction = true;
+      private boolean entropyCoding = true;
+      private boolean outOfCore = Boolean.getBoolean("tocos.outOfCore");
+      private int chunkTriangles = Integer.getInteger("tocos.chunk", 1 << 22);
+      private boolean streaming = Boolean.getBoolean("tocos.stream");
+      private boolean reorder = Boolean.getBoolean("tocos.reorder");
+      private int levels = Integer.getInteger("tocos.levels", 1);
+
+      private Builder() {}
+
+      private Builder(Options o) {
+        dump = o.dump;
+        checkForInvalidTriangles = o.checkForInvalidTriangles;
+        parallelWeld = o.parallelWeld;
+        partitions = o.partitions;
+        strategy = o.strategy;
+        parallelReconstruction = o.parallelReconstruction;
+        entropyCoding = o.entropyCoding;
+        outOfCore = o.outOfCore;
+        chunkTriangles = o.chunkTriangles;
+        streaming = o.streaming;
+        reorder = o.reorder;
+        levels = o.levels;
+      }
+    }
+
+    private Options with(Consumer<Builder> change) {
+      Builder b = new Builder(this);
+
+      change.accept(b);
+      return new Options(b);
+    }
+
+    public Options withDump(boolean dump) {
+      return with(b -> b.dump = dump);
+    }
+
+    public Options withCheckForInvalidTriangles(boolean checkForInvalidTriangles) {
+      return with(b -> b.checkForInvalidTriangles = checkForInvalidTriangles);
+    }
+
+    public Options withParallelWeld(boolean parallelWeld) {
+      return with(b -> b.parallelWeld = parallelWeld);
+    }
+
+    public Options withPartitions(int partitions) {
+      if (partitions < 1) {
+        throw new IllegalArgumentException("At least one partition is needed: " + partitions);
+      }
+
+      return with(b -> b.partitions = partitions);
+    }
+
+    public Options withStrategy(String strategy) {
+      if (!STRATEGIES.containsKey(strategy)) {
+        throw new IllegalArgumentException(
+            "Unknown decimation strategy " + strategy + ", use stack, bfs or greedy.");
+      }
+
+      return with(b -> b.strategy = strategy);
+    }
+
+    public Options withParallelReconstruction(boolean parallelReconstruction) {
+      return with(b -> b.parallelReconstruction = parallelReconstruction);
+    }
+
+    public Options withEntropyCoding(boolean entropyCoding) {
+      return with(b -> b.entropyCoding = entropyCoding);
+    }
+
+    public Options withOutOfCore(boolean outOfCore) {
+      return with(b -> b.outOfCore = outOfCore);
+    }
+
+    public Options withChunkTriangles(int chunkTriangles) {
+      if (chunkTriangles < 1) {
+        throw new IllegalArgumentException(
+            "A chunk needs at least one triangle: " + chunkTriangles);
+      }
+
+      return with(b -> b.chunkTriangles = chunkTriangles);
+    }
+
+    public Options withStreaming(boolean streaming) {
+      return with(b -> b.streaming = streaming);
+    }
+
+    public Options withReorder(boolean reorder) {
+      return with(b -> b.reorder = reorder);
+    }
+
+    public Options withLevels(int levels) {
+      if (levels < 1) {
+        throw new IllegalArgumentException("At least one level is needed: " + levels);
+      }
+
+      return with(b -> b.levels = levels);
+    }
+  }
+
+  private static boolean isEdgeCase(HalfEdgeMesh mesh, int tri, byte[] edgeCases) {
+    // An edge case (check the case.obj) is where edges can form a triangle which does not exist in
+    // the original model.
+
+    // The check is off when there is no cache for it.
+    if (edgeCases == null) {
+      return false;
+    }
+
+    if (canEdgeFormInvalidTriangle(mesh, tri * 3, edgeCases)) {
+      return true;
+    } else if (canEdgeFormInvalidTriangle(mesh, tri * 3 + 1, edgeCases)) {
+      return true;
+    } else if (canEdgeFormInvalidTriangle(mesh, tri * 3 + 2, edgeCases)) {
+      return true;
+    }
+
+    return false;
+  }
+
+  private static boolean canEdgeFormInvalidTriangle(HalfEdgeMesh mesh, int h, byte[] edgeCases) {
+    // The edges are only checked while both triangles on them exist, so the answer depends on the
+    // original adjacency alone and is cached for both half-edges: 0 unknown, 1 valid, 2 invalid.
+    if (edgeCases[h] != 0) {
+      return edgeCases[h] == 2;
+    }
+
+    // The two triangles on the edge are the only ones it may close. Any other common neighbour
+    // of its endpoints forms a triangle which does not exist, the edge is invalid.
+    boolean invalid =
+        mesh.hasCommonNeighbour(
+            mesh.origin(h), mesh.target(h), mesh.apex(h), mesh.apex(mesh.twin[h]));
+
+    edgeCases[h] = invalid ? (byte) 2 : (byte) 1;
+    edgeCases[mesh.twin[h]] = edgeCases[h];
+
+    return invalid;
+  }
+
+  private static boolean canRemove(HalfEdgeMesh mesh, int tri, BitSet removed) {
+
+    // A triangle can safely be removed if the edges reference one other triangle. Both triangles
+    // on an edge are alive exactly when the one across the twin is not removed.
+    for (int h = tri * 3; h < tri * 3 + 3; h++) {
+      if (removed.get(mesh.twin[h] / 3)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public static class Obj3d {
+
+    // Name of the mesh in its scene.
+    private String name = "";
+
+    private int[] faces = new int[3 * 16];
+    private int numFaces = 0;
+
+    public int getNumFaces() {
+      return numFaces;
+    }
+
+    // A mesh of the triangles in faces, which index the x, y, z coordinates in vertices. The
+    // arrays are used as they are, not copied.
+    public static Obj3d of(String name, float[] vertices, int[] faces) {
+      Obj3d obj = new Obj3d();
+      obj.name = name;
+      obj.vertices = vertices;
+      obj.numVertices = vertices.length / 3;
+      obj.faces = faces;
+      obj.numFaces = faces.length / 3;
+      return obj;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public float[] getVertices() {
+      return vertices.length == numVertices * 3
+          ? vertices
+          : Arrays.copyOf(vertices, numVertices * 3);
+    }
+
+    public int[] getFaces() {
+      return faces.length == numFaces * 3 ? faces : Arrays.copyOf(faces, numFaces * 3);
+    }
+
+    // Export format ids by file extension, filled when first used. The class initialization runs
+    // once and is safely published to every thread.
+    private static class ExportFormats {
+      private static final Map<String, String> IDS = new HashMap<>();
+
+      static {
+        long c = Assimp.aiGetExportFormatCount();
+
+        for (long i = 0; i < c; i++) {
+          AIExportFormatDesc desc = Assimp.aiGetExportFormatDescription(i);
+          IDS.put(desc.fileExtensionString().toLowerCase(), desc.idString());
+        }
+      }
+    }
+
+    public static String formatId(String format) throws IOException {
+
+      String formatId = ExportFormats.IDS.get(format.toLowerCase());
+
+      if (formatId == null) {
+        throw new IOException("Unsupported export format: " + format);
+      }
+
+      return formatId;
+    }
+
+    public static void saveAs(List<Obj3d> objs, String format, File target) throws IOException {
+      export(
+          objs,
+          format,
+          (scene, formatId) -> {
+            if (Assimp.aiExportScene(scene, formatId, target.getAbsolutePath(), 0)
+                != Assimp.aiReturn_SUCCESS) {
+              throw new IOException(
+                  "Failed to export " + target + ": " + Assimp.aiGetErrorString());
+            }
+          });
+    }
+
+    // Exports to the stream, which is left open. Of formats which write several files, like OBJ
+    // with its material library, only the main file is written.
+    public static void saveAs(List<Obj3d> objs, String format, OutputStream out)
+        throws IOException {
+      export(
+          objs,
+          format,
+          (scene, formatId) -> {
+            AIExportDataBlob blob = Assimp.aiExportSceneToBlob(scene, formatId, 0);
+
+            if (blob == null) {
+              throw new IOException(
+                  "Failed to export a " + format + " model: " + Assimp.aiGetErrorString());
+            }
+
+            try {
+              ByteBuffer data = blob.data();
+              WritableByteChannel channel = Channels.newChannel(out);
+
+              while (data.hasRemaining()) {
+                channel.write(data);
+              }
+            } finally {
+              Assimp.aiReleaseExportBlob(blob);
+            }
+          });
+    }
+
+    private interface SceneExport {
+      void export(AIScene scene, String formatId) throws IOException;
+    }
+
+    // Builds the scene in native memory and lets ASSIMP export it, without a temporary file.
+    // Every mesh keeps its own vertices and faces.
+    private static void export(List<Obj3d> objs, String format, SceneExport export)
+        throws IOException {
+
+      String formatId = formatId(format);
+
+      int numMeshes = objs.size();
+
+      FloatBuffer[] vertices = new FloatBuffer[numMeshes];
+      IntBuffer[] indices = new IntBuffer[numMeshes];
+      AIFace.Buffer[] faces = new AIFace.Buffer[numMeshes];
+      AIMesh.Buffer mesh = AIMesh.calloc(numMeshes);
+      AIMaterial material = AIMaterial.calloc();
+      AINode root = AINode.calloc();
+      IntBuffer rootMeshes = MemoryUtil.memAllocInt(numMeshes);
+      PointerBuffer meshes = MemoryUtil.memAllocPointer(numMeshes);
+      PointerBuffer materials = MemoryUtil.memAllocPointer(1);
+      AIScene scene = AIScene.calloc();
+
+      try {
+        for (int m = 0; m < numMeshes; m++) {
+          Obj3d obj = objs.get(m);
+
+          vertices[m] = MemoryUtil.memAllocFloat(Math.max(obj.numVertices * 3, 1));
+          indices[m] = MemoryUtil.memAllocInt(Math.max(obj.numFaces * 3, 1));
+          faces[m] = AIFace.calloc(obj.numFaces);
+
+          vertices[m].put(obj.vertices, 0, obj.numVertices * 3).flip();
+          indices[m].put(obj.faces, 0, obj.numFaces * 3).flip();
+
+          // All faces point into one shared index array.
+          long face = faces[m].address();
+          long index = MemoryUtil.memAddress(indices[m]);
+
+          for (int f = 0; f < obj.numFaces; f++, face += AIFace.SIZEOF, index += 12) {
+            MemoryUtil.memPutInt(face + AIFace.MNUMINDICES, 3);
+            MemoryUtil.memPutAddress(face + AIFace.MINDICES, index);
+          }
+
+          // Named meshes stay separate groups in formats like OBJ.
+          ByteBuffer name = MemoryUtil.memUTF8(obj.name.isEmpty() ? "mesh" + m : obj.name);
+
+          try {
+            mesh.get(m).mName().data(name);
+          } finally {
+            MemoryUtil.memFree(name);
+          }
+
+          mesh.get(m)
+              .mPrimitiveTypes(Assimp.aiPrimitiveType_TRIANGLE)
+              .mNumVertices(obj.numVertices)
+              .mVertices(AIVector3D.create(MemoryUtil.memAddress(vertices[m]), obj.numVertices))
+              .mFaces(faces[m])
+              .mMaterialIndex(0);
+
+          meshes.put(m, mesh.get(m));
+          rootMeshes.put(m, m);
+        }
+
+        root.mTransformation(m -> m.a1(1).b2(1).c3(1).d4(1)).mMeshes(rootMeshes);
+
+        scene.mRootNode(root).mMeshes(meshes).mMaterials(materials.put(0, material));
+
+        export.export(scene, formatId);
+      } finally {
+        scene.free();
+        MemoryUtil.memFree(materials);
+        MemoryUtil.memFree(meshes);
+        MemoryUtil.memFree(rootMeshes);
+        root.free();
+        material.free();
+        mesh.free();
+
+        for (int m = 0; m < numMeshes; m++) {
+          if (faces[m] != null) {
+            faces[m].free();
+          }
+          MemoryUtil.memFree(indices[m]);
+          MemoryUtil.memFree(vertices[m]);
+        }
+      }
+    }
+
+    @SuppressWarnings("try")
+    public static List<Obj3d> readMeshes(File file, Options options, Stats stats)
+        throws IOException {
+      // ASSIMP does not know indexed tbin files, they hold a single mesh.
+      if (FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("tbin")) {
+        Obj3d obj;
+
+        try (Stats.Timer t = stats.time("read")) {
+          obj = TBin.read(file);
+        }
+
+        if (obj.numFaces == 0) {
+          throw new IOException("No triangles in " + file);
+        }
+
+        for (int i = 0; i < obj.numFaces * 3; i++) {
+          if (obj.faces[i] < 0 || obj.faces[i] >= obj.numVertices) {
+            throw new IOException("Invalid vertex index " + obj.faces[i] + " in " + file);
+          }
+        }
+
+        try (Stats.Timer t = stats.time("weld")) {
+          obj.weld(options.parallelWeld);
+        }
+
+        List<Obj3d> objs = new ArrayList<>();
+        objs.add(obj);
+        return objs;
+      }
+
+      return readMeshes(
+          () -> Assimp.aiImportFile(file.getAbsolutePath(), Assimp.aiProcess_Triangulate),
+          file.getPath(),
+          options,
+          stats);
+    }
+
+    // Reads a file whose extension does not tell its format, e.g. a compressed .CoToS file.
+    public static List<Obj3d> readMeshes(File file, String format, Options options, Stats stats)
+        throws IOException {
+
+      return readMeshes(
+          () -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+              MappedByteBuffer data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+              try {
+                return importFromMemory(data, format);
+              } finally {
+                unmap(data);
+              }
+            }
+          },
+          file.getPath(),
+          options,
+          stats);
+    }
+
+    // Reads a model held in memory, format is the file extension of its format.
+    public static List<Obj3d> readMeshes(
+        ByteBuffer data, String format, Options options, Stats stats) throws IOException {
+      return readMeshes(
+          () -> importFromMemory(data, format), "a " + format + " model", options, stats);
+    }
+
+    // ASSIMP only reads native memory, a heap buffer is copied first.
+    private static AIScene importFromMemory(ByteBuffer data, String format) {
+      if (data.isDirect()) {
+        return Assimp.aiImportFileFromMemory(data, Assimp.aiProcess_Triangulate, format);
+      }
+
+      ByteBuffer copy = MemoryUtil.memAlloc(data.remaining());
+
+      try {
+        copy.put(data.duplicate()).flip();
+        return Assimp.aiImportFileFromMemory(copy, Assimp.aiProcess_Triangulate, format);
+      } finally {
+        MemoryUtil.memFree(copy);
+      }
+    }
+
+    // Every mesh of the scene with triangles becomes its own welded Obj3d.
+    @SuppressWarnings("try")
+    private static List<Obj3d> readMeshes(
+        IoSupplier<AIScene> importer, String source, Options options, Stats stats)
+        throws IOException {
+
+      List<Obj3d> objs = new ArrayList<>();
+
+      try (Stats.Timer t = stats.time("read")) {
+        AIScene scene = importer.get();
+
+        if (scene == null) {
+          throw new IOException("Failed to read " + source + ": " + Assimp.aiGetErrorString());
+        }
+
+        // The meshes are copied to the heap, the native scene is released right away.
+        try {
+          if (scene.mRootNode() != null) {
+            readNode(scene, scene.mRootNode(), IDENTITY, objs);
+          } else {
+            for (int m = 0; m < scene.mNumMeshes(); m++) {
+              addMesh(scene, m, IDENTITY, objs);
+            }
+          }
+        } finally {
+          Assimp.aiReleaseImport(scene);
+        }
+      }
+
+      if (objs.isEmpty()) {
+        throw new IOException("No triangles in " + source);
+      }
+
+      try (Stats.Timer t = stats.time("weld")) {
+        for (Obj3d obj : objs) {
+          obj.weld(options.parallelWeld);
+        }
+      }
+
+      return objs;
+    }
+
+    // Row major 3x4 matrix of the identity transform.
+    private static final double[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0};
+
+    // Every mesh of a node is placed with the transforms of the node and its ancestors, a mesh
+    // instanced by several nodes is read once for each.
+    private static void readNode(AIScene scene, AINode node, double[] parent, List<Obj3d> objs) {
+      AIMatrix4x4 m = node.mTransformation();
+      double[] local = {
+        m.a1(), m.a2(), m.a3(), m.a4(),
+        m.b1(), m.b2(), m.b3(), m.b4(),
+        m.c1(), m.c2(), m.c3(), m.c4()
+      };
+      double[] transform = new double[12];
+
+      for (int r = 0; r < 3; r++) {
+        for (int c = 0; c < 4; c++) {
+          transform[r * 4 + c] =
+              parent[r * 4] * local[c]
+                  + parent[r * 4 + 1] * local[4 + c]
+                  + parent[r * 4 + 2] * local[8 + c]
+                  + (c == 3 ? parent[r * 4 + 3] : 0);
+        }
+      }
+
+      for (int i = 0; i < node.mNumMeshes(); i++) {
+        addMesh(scene, node.mMeshes().get(i), transform, objs);
+      }
+
+      for (int i = 0; i < node.mNumChildren(); i++) {
+        readNode(scene, AINode.create(node.mChildren().get(i)), transform, objs);
+      }
+    }
+
+    private static void addMesh(AIScene scene, int m, double[] transform, List<Obj3d> objs) {
+      Obj3d obj = read(AIMesh.create(scene.mMeshes().get(m)));
+
+      if (obj.numFaces > 0) {
+        obj.transform(transform);
+        objs.add(obj);
+      }
+    }
+
+    // Moves the vertices by a row major 3x4 matrix. A mirroring transform reverses the faces, so
+    // they keep facing outwards.
+    private void transform(double[] t) {
+      if (Arrays.equals(t, IDENTITY)) {
+        return;
+      }
+
+      for (int i = 0; i < numVertices * 3; i += 3) {
+        double x = vertices[i];
+        double y = vertices[i + 1];
+        double z = vertices[i + 2];
+
+        vertices[i] = (float) (t[0] * x + t[1] * y + t[2] * z + t[3]);
+        vertices[i + 1] = (float) (t[4] * x + t[5] * y + t[6] * z + t[7]);
+        vertices[i + 2] = (float) (t[8] * x + t[9] * y + t[10] * z + t[11]);
+      }
+
+      double determinant =
+          t[0] * (t[5] * t[10] - t[6] * t[9])
+              - t[1] * (t[4] * t[10] - t[6] * t[8])
+              + t[2] * (t[4] * t[9] - t[5] * t[8]);
+
+      if (determinant < 0) {
+        for (int f = 0; f < numFaces * 3; f += 3) {
+          int b = faces[f + 1];
+
+          faces[f + 1] = faces[f + 2];
+          faces[f + 2] = b;
+        }
+      }
+    }
+
+    private static Obj3d read(AIMesh mesh) {
+      Obj3d obj = new Obj3d();
+      obj.name = mesh.mName().dataString();
+
+      // AIVector3D is three packed floats, so the vertices are copied with one bulk transfer.
+      int numVertices = mesh.mNumVertices();
+
+      obj.vertices = new float[numVertices * 3];
+      obj.numVertices = numVertices;
+
+      MemoryUtil.memFloatBuffer(mesh.mVertices().address(), numVertices * 3).get(obj.vertices);
+
+      // Every face points to its own index array, read them straight from native memory.
+      int numFaces = mesh.mNumFaces();
+      long face = mesh.mFaces().address();
+
+      obj.faces = new int[numFaces * 3];
+
+      for (int f = 0; f < numFaces; f++, face += AIFace.SIZEOF) {
+        if (MemoryUtil.memGetInt(face + AIFace.MNUMINDICES) != 3) {
+          // Points and lines left over by the triangulation.
+          continue;
+        }
+
+        long indices = MemoryUtil.memGetAddress(face + AIFace.MINDICES);
+
+        obj.faces[obj.numFaces * 3] = MemoryUtil.memGetInt(indices);
+        obj.faces[obj.numFaces * 3 + 1] = MemoryUtil.memGetInt(indices + 4);
+        obj.faces[obj.numFaces * 3 + 2] = MemoryUtil.memGetInt(indices + 8);
+        obj.numFaces++;
+      }
+
+      return obj;
+    }
+
+    public int getNumVertices() {
+      return numVertices;
+    }
+
+    private float[] vertices = new float[3 * 16];
+    private int numVertices = 0;
+
+    public void addVertex(Vector3f vertex) {
+      addVertex(vertex.x, vertex.y, vertex.z);
+    }
+
+    public void addFace(int a, int b, int c) {
+      if (numFaces * 3 == faces.length) {
+        faces = Arrays.copyOf(faces, faces.length * 2);
+      }
+
+      faces[numFaces * 3] = a;
+      faces[numFaces * 3 + 1] = b;
+      faces[numFaces * 3 + 2] = c;
+      numFaces++;
+    }
+
+    // Merges coincident vertices in one pass and points the faces to the merged ones.
+    public void weld(boolean parallel) {
+      Nodify3d n3d = new Nodify3d(vertices, numVertices, parallel);
+
+      for (int i = 0; i < numFaces * 3; i++) {
+        faces[i] = n3d.encode(faces[i]);
+      }
+
+      vertices = n3d.vertices;
+      numVertices = n3d.size();
+    }
+
+    public Vector3f getVertex(int i) {
+      return new Vector3f(vertices[i * 3], vertices[i * 3 + 1], vertices[i * 3 + 2]);
+    }
+
+    public int getVertexIndex(int face, int x) {
+      return faces[face * 3 + x];
+    }
+
+    public void addVertex(float x, float y, float z) {
+      if (numVertices * 3 == vertices.length) {
+        vertices = Arrays.copyOf(vertices, vertices.length * 2);
+      }
+
+      vertices[numVertices * 3] = x;
+      vertices[numVertices * 3 + 1] = y;
+      vertices[numVertices * 3 + 2] = z;
+      numVertices++;
+    }
+  }
+
+  // Wall time and allocation of the phases and the counters of one file, and of each of its
+  // meshes. Meshes run concurrently, so all updates are synchronized. Allocation is measured on
+  // the thread running a phase, work it hands to other threads is not included.
+  public static class Stats {
+    private final String name;
+    // Phase name to {calls, nanoseconds, allocated bytes}.
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final List<Stats> meshes = new ArrayList<>();
+
+    public Stats(String name) {
+      this.name = name;
+    }
+
+    public synchronized Stats mesh(String name) {
+      Stats mesh = new Stats(name);
+      meshes.add(mesh);
+      return mesh;
+    }
+
+    // Times a try block. The timer is never referenced in the block, so the methods using it
+    // suppress the try lint.
+    public Timer time(String phase) {
+      return new Timer(phase);
+    }
+
+    public synchronized void count(String counter, long n) {
+      counters.merge(counter, n, Long::sum);
+    }
+
+    public synchronized long counter(String counter) {
+      long n = counters.getOrDefault(counter, 0L);
+
+      for (Stats mesh : meshes) {
+        n += mesh.counter(counter);
+      }
+
+      return n;
+    }
+
+    private synchronized void add(String phase, long nanos, long bytes) {
+      long[] p = phases.computeIfAbsent(phase, k -> new long[3]);
+      p[0]++;
+      p[1] += nanos;
+      p[2] += bytes;
+    }
+
+    public synchronized String toJson() {
+      StringBuilder json = new StringBuilder("{\"name\":");
+      quote(json, name);
+
+      json.append(",\"phases\":{");
+      String separator = "";
+
+      for (Map.Entry<String, long[]> p : phases.entrySet()) {
+        json.append(separator);
+        quote(json, p.getKey());
+        json.append(":{\"calls\":").append(p.getValue()[0]);
+        json.append(",\"ms\":").append(p.getValue()[1] / 1e6);
+        json.append(",\"allocatedBytes\":").append(p.getValue()[2]).append('}');
+        separator = ",";
+      }
+
+      json.append("},\"counters\":{");
+      separator = "";
+
+      for (Map.Entry<String, Long> c : counters.entrySet()) {
+        json.append(separator);
+        quote(json, c.getKey());
+        json.append(':').append(c.getValue());
+        separator = ",";
+      }
+
+      json.append('}');
+
+      if (!meshes.isEmpty()) {
+        json.append(",\"meshes\":[");
+        separator = "";
+
+        for (Stats mesh : meshes) {
+          json.append(separator).append(mesh.toJson());
+          separator = ",";
+        }
+
+        json.append(']');
+      }
+
+      return json.append('}').toString();
+    }
+
+    private static void quote(StringBuilder json, String s) {
+      json.append('"');
+
+      for (char c : s.toCharArray()) {
+        if (c == '"' || c == '\\') {
+          json.append('\\').append(c);
+        } else if (c < 0x20) {
+          json.append(String.format("\\u%04x", (int) c));
+        } else {
+          json.append(c);
+        }
+      }
+
+      json.append('"');
+    }
+
+    // Prints the counters of every mesh and the phases, then appends the JSON report.
+    public synchronized void report() throws IOException {
+      if (VERBOSE) {
+        for (Stats mesh : meshes) {
+          System.out.println("Mesh: " + mesh.name);
+
+          synchronized (mesh) {
+            mesh.counters.forEach((c, n) -> System.out.println(c + ": " + n));
+          }
+        }
+
+        counters.forEach((c, n) -> System.out.println(c + ": " + n));
+
+        StringBuilder line = new StringBuilder("Phases:");
+        Map<String, long[]> all = new LinkedHashMap<>(phases);
+
+        for (Stats mesh : meshes) {
+          synchronized (mesh) {
+            mesh.phases.forEach(
+                (p, t) ->
+                    all.merge(
+                        p, t, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1], a[2] + b[2]}));
+          }
+        }
+
+        all.forEach((p, t) -> line.append(' ').append(p).append(' ').append(t[1] / 1e6 + " ms"));
+        System.out.println(line);
+        System.out.println();
+      }
+
+      if (REPORT != null) {
+        String json = toJson() + System.lineSeparator();
+
+        synchronized (Stats.class) {
+          Files.write(
+              Paths.get(REPORT),
+              json.getBytes(StandardCharsets.UTF_8),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.APPEND);
+        }
+      }
+    }
+
+    class Timer implements AutoCloseable {
+      private final String phase;
+      private final long start;
+      private final long allocated;
+      private final PhaseEvent event = new PhaseEvent();
+
+      private Timer(String phase) {
+        this.phase = phase;
+        event.begin();
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+      }
+
+      @Override
+      public void close() {
+        add(phase, System.nanoTime() - start, allocatedBytes() - allocated);
+
+        event.end();
+        if (event.shouldCommit()) {
+          event.name = name;
+          event.phase = phase;
+          event.commit();
+        }
+      }
+    }
+
+    private static long allocatedBytes() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+        return ((com.sun.management.ThreadMXBean) threads)
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+
+      return 0;
+    }
+  }
+
+  // Flight recorder events, enabled with -XX:StartFlightRecording.
+  @Name("si.gemma.Phase")
+  @Label("ToCoS Phase")
+  @Category("ToCoS")
+  static class PhaseEvent extends Event {
+    @Label("File or Mesh")
+    String name;
+
+    @Label("Phase")
+    String phase;
+  }
+
+  @Name("si.gemma.Decimate")
+  @Label("ToCoS Decimate")
+  @Category("ToCoS")
+  static class DecimateEvent extends Event {
+    @Label("Mesh")
+    String mesh;
+
+    @Label("Strategy")
+    String strategy;
+
+    @Label("Triangles")
+    int triangles;
+
+    @Label("Visited")
+    long visited;
+
+    @Label("Edge Case Rejections")
+    long edgeCaseRejections;
+
+    @Label("Removed")
+    int removed;
+  }
+
+  @Name("si.gemma.Reconstruct")
+  @Label("ToCoS Reconstruct")
+  @Category("ToCoS")
+  static class ReconstructEvent extends Event {
+    @Label("Mesh")
+    String mesh;
+
+    @Label("Holes Refilled")
+    int holesRefilled;
+
+    @Label("Problematic Edges")
+    int problematicEdges;
+  }
+
+  // Native .CoToS container. After the header (magic, version, flags, mesh count and for every
+  // mesh its name, vertex and face counts, bounding box minimum and quantization step) follows the
+  // payload, deflated when the flag is set. For every mesh it holds the quantized coordinates as
+  // deltas to the previous vertex, then for every face the delta of its first index to the
+  // previous face's first index and the deltas of the other two to its first. All deltas are
+  // zigzag varints. Version 1 files hold one mesh and no mesh count.
+  static class CoToSFile {
+    private static final byte[] MAGIC = {'C', 'o', 'T', 'o', 'S'};
+    private static final int VERSION = 2;
+    private static final int FLAG_DEFLATE = 1;
+    // Vertices and faces allocated before the data shows the header counts are real.
+    private static final int INITIAL_ELEMENTS = 1 << 16;
+
+    public static boolean isCoToS(File file) throws IOException {
+      byte[] magic = new byte[MAGIC.length];
+
+      try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+        in.readFully(magic);
+      } catch (EOFException e) {
+        return false;
+      }
+
+      return Arrays.equals(magic, MAGIC);
+    }
+
+    public static void write(List<Obj3d> objs, File file, Options options) throws IOException {
+      try (OutputStream out = new FileOutputStream(file)) {
+        write(objs, out, options);
+      }
+    }
+
+    // Writes the meshes to the stream, which is left open.
+    public static void write(List<Obj3d> objs, OutputStream stream, Options options)
+        throws IOException {
+      float[][] min = new float[objs.size()][];
+      float[] step = new float[objs.size()];
+
+      for (int m = 0; m < objs.size(); m++) {
+        Obj3d obj = objs.get(m);
+        float[] max = {0, 0, 0};
+
+        min[m] = new float[] {0, 0, 0};
+
+        for (int i = 0; i < obj.numVertices * 3; i++) {
+          if (i < 3 || obj.vertices[i] < min[m][i % 3]) {
+            min[m][i % 3] = obj.vertices[i];
+          }
+          if (i < 3 || obj.vertices[i] > max[i % 3]) {
+            max[i % 3] = obj.vertices[i];
+          }
+        }
+
+        step[m] = step(min[m], max);
+      }
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+      try {
+        DeflaterOutputStream deflated =
+            options.entropyCoding ? new DeflaterOutputStream(out, deflater, 1 << 16) : null;
+        DataOutputStream payload =
+            deflated != null
+                ? new DataOutputStream(new BufferedOutputStream(deflated, 1 << 16))
+                : out;
+
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(options.entropyCoding ? FLAG_DEFLATE : 0);
+        out.writeInt(objs.size());
+
+        for (int m = 0; m < objs.size(); m++) {
+          out.writeUTF(objs.get(m).name);
+          out.writeInt(objs.get(m).numVertices);
+          out.writeInt(objs.get(m).numFaces);
+          writeBounds(out, min[m], step[m]);
+        }
+
+        for (int m = 0; m < objs.size(); m++) {
+          Obj3d obj = objs.get(m);
+          int[] previous = {0, 0, 0};
+
+          for (int i = 0; i < obj.numVertices * 3; i++) {
+            int q = quantize(obj.vertices[i], min[m][i % 3], step[m]);
+            writeVarint(payload, q - previous[i % 3]);
+            previous[i % 3] = q;
+          }
+
+          int first = 0;
+
+          for (int f = 0; f < obj.numFaces * 3; f += 3) {
+            writeVarint(payload, obj.faces[f] - first);
+            writeVarint(payload, obj.faces[f + 1] - obj.faces[f]);
+            writeVarint(payload, obj.faces[f + 2] - obj.faces[f]);
+            first = obj.faces[f];
+          }
+        }
+
+        payload.flush();
+
+        if (deflated != null) {
+          deflated.finish();
+        }
+
+        out.flush();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    public static List<Obj3d> read(File file) throws IOException {
+      try (InputStream in = new FileInputStream(file)) {
+        return read(in, file.getPath());
+      }
+    }
+
+    // Reads the meshes from the stream, which is left open.
+    public static List<Obj3d> read(InputStream stream, String source) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a CoToS file: " + source);
+      }
+
+      int version = in.readUnsignedByte();
+
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported CoToS version: " + version);
+      }
+
+      int flags = in.readUnsignedByte();
+      int numMeshes = version == 1 ? 1 : in.readInt();
+
+      if (numMeshes < 0) {
+        throw new IOException("Invalid mesh count " + numMeshes + " in " + source);
+      }
+
+      // The counts in the header are not trusted, the lists and arrays only grow with the data
+      // actually read.
+      List<Obj3d> objs = new ArrayList<>();
+      List<double[]> min = new ArrayList<>();
+      List<Double> step = new ArrayList<>();
+
+      for (int m = 0; m < numMeshes; m++) {
+        Obj3d obj = new Obj3d();
+        obj.name = version == 1 ? "" : in.readUTF();
+        obj.numVertices = in.readInt();
+        obj.numFaces = in.readInt();
+        objs.add(obj);
+
+        if (obj.numVertices < 0
+            || obj.numVertices > Integer.MAX_VALUE / 3
+            || obj.numFaces < 0
+            || obj.numFaces > Integer.MAX_VALUE / 3) {
+          throw new IOException(
+              "Invalid mesh size "
+                  + obj.numVertices
+                  + " vertices, "
+                  + obj.numFaces
+                  + " faces in "
+                  + source);
+        }
+
+        min.add(new double[] {in.readFloat(), in.readFloat(), in.readFloat()});
+        step.add((double) in.readFloat());
+      }
+
+      Inflater inflater = new Inflater();
+      DataInputStream payload =
+          (flags & FLAG_DEFLATE) != 0
+              ? new DataInputStream(
+                  new BufferedInputStream(new InflaterInputStream(in, inflater, 1 << 16)))
+              : in;
+
+      try {
+        for (int m = 0; m < numMeshes; m++) {
+          Obj3d obj = objs.get(m);
+
+          double[] origin = min.get(m);
+          double size = step.get(m);
+
+          obj.vertices = new float[Math.min(obj.numVertices, INITIAL_ELEMENTS) * 3];
+          int[] previous = {0, 0, 0};
+
+          for (int i = 0; i < obj.numVertices * 3; i++) {
+            if (i == obj.vertices.length) {
+              obj.vertices = Arrays.copyOf(obj.vertices, grown(i, obj.numVertices * 3));
+            }
+
+            previous[i % 3] += readVarint(payload);
+            obj.vertices[i] = (float) (origin[i % 3] + previous[i % 3] * size);
+          }
+
+          obj.faces = new int[Math.min(obj.numFaces, INITIAL_ELEMENTS) * 3];
+          int first = 0;
+
+          for (int f = 0; f < obj.numFaces * 3; f += 3) {
+            if (f == obj.faces.length) {
+              obj.faces = Arrays.copyOf(obj.faces, grown(f, obj.numFaces * 3));
+            }
+
+            first += readVarint(payload);
+            obj.faces[f] = first;
+            obj.faces[f + 1] = first + readVarint(payload);
+            obj.faces[f + 2] = first + readVarint(payload);
+          }
+
+          for (int i = 0; i < obj.numFaces * 3; i++) {
+            if (obj.faces[i] < 0 || obj.faces[i] >= obj.numVertices) {
+              throw new IOException("Invalid vertex index " + obj.faces[i] + " in " + source);
+            }
+          }
+        }
+      } finally {
+        inflater.end();
+      }
+
+      return objs;
+    }
+
+    // Twice the length, at most the count the header declared. Both are multiples of 3.
+    private static int grown(int length, int declared) {
+      return (int) Math.min(declared, length * 2L);
+    }
+
+    // Quantize to the welding precision, unless the mesh is too large for it.
+    private static float step(float[] min, float[] max) {
+      double extent = Math.max(max[0] - min[0], Math.max(max[1] - min[1], max[2] - min[2]));
+      return (float) Math.max(Nodify3d.EPSILON, extent / Integer.MAX_VALUE);
+    }
+
+    private static int quantize(float value, float min, float step) {
+      return (int) Math.round((value - (double) min) / step);
+    }
+
+    private static void writeBounds(DataOutputStream out, float[] min, float step)
+        throws IOException {
+      for (int k = 0; k < 3; k++) {
+        out.writeFloat(min[k]);
+      }
+      out.writeFloat(step);
+    }
+
+    // Writes a file with a single mesh whose vertices are streamed first and whose faces follow
+    // while their count is not known yet, it is filled into the header on close.
+    static class MeshWriter implements MeshOutput {
+      private final File file;
+      private final DataOutputStream payload;
+      private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      private final int numFacesPosition;
+      private final float[] min;
+      private final float step;
+
+      private final int[] previous = {0, 0, 0};
+      private int first = 0;
+      private int numFaces = 0;
+
+      public MeshWriter(
+          File file, String name, int numVertices, float[] min, float[] max, Options options)
+          throws IOException {
+        this.file = file;
+        this.min = min;
+        step = step(min, max);
+
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(options.entropyCoding ? FLAG_DEFLATE : 0);
+        out.writeInt(1);
+        out.writeUTF(name);
+        out.writeInt(numVertices);
+
+        numFacesPosition = out.size();
+
+        out.writeInt(0);
+        writeBounds(out, min, step);
+
+        payload =
+            options.entropyCoding
+                ? new DataOutputStream(
+                    new BufferedOutputStream(new DeflaterOutputStream(out, deflater, 1 << 16)))
+                : out;
+      }
+
+      @Override
+      public void vertex(float x, float y, float z) throws IOException {
+        int qx = quantize(x, min[0], step);
+        int qy = quantize(y, min[1], step);
+        int qz = quantize(z, min[2], step);
+
+        writeVarint(payload, qx - previous[0]);
+        writeVarint(payload, qy - previous[1]);
+        writeVarint(payload, qz - previous[2]);
+
+        previous[0] = qx;
+        previous[1] = qy;
+        previous[2] = qz;
+      }
+
+      @Override
+      public void face(int a, int b, int c) throws IOException {
+        writeVarint(payload, a - first);
+        writeVarint(payload, b - a);
+        writeVarint(payload, c - a);
+        first = a;
+        numFaces++;
+      }
+
+      @Override
+      public int getNumFaces() {
+        return numFaces;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          payload.close();
+        } finally {
+          deflater.end();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+          raf.seek(numFacesPosition);
+          raf.writeInt(numFaces);
+        }
+      }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+      int v = (value << 1) ^ (value >> 31);
+
+      while ((v & ~0x7F) != 0) {
+        out.writeByte((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      out.writeByte(v);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+      int v = 0;
+
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = in.readUnsignedByte();
+        v |= (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) {
+          return (v >>> 1) ^ -(v & 1);
+        }
+      }
+
+      throw new IOException("Malformed varint.");
+    }
+  }
+
+  // Thread-safe entry point for embedding ToCoS in a service. Meshes, models in memory and .CoToS
+  // streams go in and out, the options come with every call and the large scratch arrays are
+  // pooled between the calls of one engine.
+  public static final class Engine {
+    private final ScratchPool scratch = new ScratchPool();
+
+    // Decimates watertight, welded meshes and writes them to the stream as .CoToS.
+    @SuppressWarnings("try")
+    public void compress(List<Obj3d> meshes, OutputStream out, Options options, Stats stats)
+        throws IOException {
+      List<Obj3d> decimated = decimate(meshes, "mesh", options, scratch, stats);
+
+      try (Stats.Timer t = stats.time("write")) {
+        CoToSFile.write(decimated, out, options);
+      }
+    }
+
+    // Compresses a model in any format ASSIMP reads, format is its file extension.
+    public void compress(
+        ByteBuffer model, String format, OutputStream out, Options options, Stats stats)
+        throws IOException {
+      compress(Obj3d.readMeshes(model, format, options, stats), out, options, stats);
+    }
+
+    // Reads a .CoToS stream and restores every triangle of its meshes.
+    @SuppressWarnings("try")
+    public List<Obj3d> decompress(InputStream in, Options options, Stats stats)
+        throws IOException {
+      List<Obj3d> decimated;
+
+      try (Stats.Timer t = stats.time("read")) {
+        decimated = CoToSFile.read(in, "a .CoToS stream");
+      }
+
+      return forEachMesh(
+          decimated, stats, (obj, i, meshStats) -> opt2full(obj, options, scratch, meshStats));
+    }
+
+    // Restores a .CoToS stream mesh by mesh into the sink, which sees the kept triangles of a mesh
+    // before its holes are searched. Only one restored mesh is in memory at a time, and only
+    // while it is handed on.
+    @SuppressWarnings("try")
+    public void decompress(InputStream in, TriangleSink sink, Options options, Stats stats)
+        throws IOException {
+      List<Obj3d> decimated;
+
+      try (Stats.Timer t = stats.time("read")) {
+        decimated = CoToSFile.read(in, "a .CoToS stream");
+      }
+
+      ToCoS.restore(decimated, sink, options, scratch, stats);
+    }
+
+    // Restores a .CoToS stream and exports it to the stream in the format of the extension.
+    @SuppressWarnings("try")
+    public void decompress(
+        InputStream in, String format, OutputStream out, Options options, Stats stats)
+        throws IOException {
+      List<Obj3d> restored = decompress(in, options, stats);
+
+      try (Stats.Timer t = stats.time("export")) {
+        Obj3d.saveAs(restored, format, out);
+      }
+    }
+  }
+
+  // Receives restored meshes triangle by triangle: begin, the kept triangles of the mesh at once,
+  // the refilled ones in batches as the holes are found, then end. The triangles index the
+  // vertices given to begin. The arrays are only valid during the call.
+  public interface TriangleSink {
+    // A mesh starts, about the given number of triangles will follow.
+    void begin(String name, float[] vertices, int numVertices, int triangles) throws IOException;
+
+    // The count triangles of faces starting at the triangle from.
+    void triangles(int[] faces, int from, int count) throws IOException;
+
+    void end() throws IOException;
+
+    // A sink which hands every triangle to the callback.
+    static TriangleSink of(TriangleCallback callback) {
+      return new TriangleSink() {
+        private float[] vertices;
+
+        @Override
+        public void begin(String name, float[] vertices, int numVertices, int triangles) {
+          this.vertices = vertices;
+        }
+
+        @Override
+        public void triangles(int[] faces, int from, int count) {
+          for (int i = from * 3; i < (from + count) * 3; i += 3) {
+            callback.triangle(vertices, faces[i], faces[i + 1], faces[i + 2]);
+          }
+        }
+
+        @Override
+        public void end() {}
+      };
+    }
+  }
+
+  public interface TriangleCallback {
+    // The corners a, b and c index the x, y, z coordinates in vertices.
+    void triangle(float[] vertices, int a, int b, int c);
+  }
+
+  // Collects the triangles in an Obj3d, the mesh which opt2full returns.
+  private static class MeshSink implements TriangleSink {
+    private Obj3d mesh;
+
+    @Override
+    public void begin(String name, float[] vertices, int numVertices, int triangles) {
+      mesh = new Obj3d();
+      mesh.name = name;
+      mesh.vertices = vertices;
+      mesh.numVertices = numVertices;
+      mesh.faces = new int[Math.max(triangles, 1) * 3];
+    }
+
+    @Override
+    public void triangles(int[] faces, int from, int count) {
+      if ((mesh.numFaces + count) * 3 > mesh.faces.length) {
+        mesh.faces =
+            Arrays.copyOf(
+                mesh.faces, Math.max(mesh.faces.length * 2, (mesh.numFaces + count) * 3));
+      }
+
+      System.arraycopy(faces, from * 3, mesh.faces, mesh.numFaces * 3, count * 3);
+      mesh.numFaces += count;
+    }
+
+    @Override
+    public void end() {}
+  }
+
+  // Writes every mesh as an object of one OBJ file, the vertices when the mesh begins.
+  public static final class ObjSink implements TriangleSink, Closeable {
+    private final Writer out;
+    // OBJ indices count from 1 across the objects of the file.
+    private int firstVertex = 1;
+    private int numVertices;
+
+    public ObjSink(OutputStream out) {
+      this.out =
+          new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII), 1 << 16);
+    }
+
+    @Override
+    public void begin(String name, float[] vertices, int numVertices, int triangles)
+        throws IOException {
+      this.numVertices = numVertices;
+
+      if (!name.isEmpty()) {
+        out.write("o " + name + "\n");
+      }
+
+      for (int i = 0; i < numVertices * 3; i += 3) {
+        out.write("v " + vertices[i] + " " + vertices[i + 1] + " " + vertices[i + 2] + "\n");
+      }
+    }
+
+    @Override
+    public void triangles(int[] faces, int from, int count) throws IOException {
+      StringBuilder line = new StringBuilder(32);
+
+      for (int i = from * 3; i < (from + count) * 3; i += 3) {
+        line.setLength(0);
+        line.append("f ").append(faces[i] + firstVertex);
+        line.append(' ').append(faces[i + 1] + firstVertex);
+        line.append(' ').append(faces[i + 2] + firstVertex).append('\n');
+        out.append(line);
+      }
+    }
+
+    @Override
+    public void end() throws IOException {
+      firstVertex += numVertices;
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  // Writes every mesh into one binary STL file. The header goes out with the first triangles and
+  // holds the count announced by the first mesh, it is patched on close if the total differs.
+  public static final class StlSink implements TriangleSink, Closeable {
+    private static final int HEADER = 80;
+    private static final int TRIANGLE = 50;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer =
+        ByteBuffer.allocateDirect(TRIANGLE * SINK_BATCH).order(ByteOrder.LITTLE_ENDIAN);
+    private float[] vertices;
+    private long header = -1;
+    private long written;
+
+    public StlSink(File file) throws IOException {
+      channel =
+          FileChannel.open(
+              file.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+      buffer.put(new byte[HEADER]).putInt(0);
+    }
+
+    @Override
+    public void begin(String name, float[] vertices, int numVertices, int triangles)
+        throws IOException {
+      this.vertices = vertices;
+
+      if (header == -1) {
+        header = triangles;
+        buffer.putInt(HEADER, triangles);
+      }
+    }
+
+    @Override
+    public void triangles(int[] faces, int from, int count) throws IOException {
+      for (int i = from * 3; i < (from + count) * 3; i += 3) {
+        if (buffer.remaining() < TRIANGLE) {
+          flush();
+        }
+
+        int a = faces[i] * 3;
+        int b = faces[i + 1] * 3;
+        int c = faces[i + 2] * 3;
+        Vector3f n =
+            new Vector3f(
+                    vertices[b] - vertices[a],
+                    vertices[b + 1] - vertices[a + 1],
+                    vertices[b + 2] - vertices[a + 2])
+                .cross(
+                    vertices[c] - vertices[a],
+                    vertices[c + 1] - vertices[a + 1],
+                    vertices[c + 2] - vertices[a + 2])
+                .normalize();
+
+        buffer.putFloat(n.x).putFloat(n.y).putFloat(n.z);
+        buffer.putFloat(vertices[a]).putFloat(vertices[a + 1]).putFloat(vertices[a + 2]);
+        buffer.putFloat(vertices[b]).putFloat(vertices[b + 1]).putFloat(vertices[b + 2]);
+        buffer.putFloat(vertices[c]).putFloat(vertices[c + 1]).putFloat(vertices[c + 2]);
+        buffer.putShort((short) 0);
+        written++;
+      }
+    }
+
+    @Override
+    public void end() throws IOException {
+      flush();
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+
+        if (written != header) {
+          ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+          count.putInt(0, (int) written);
+          channel.write(count, HEADER);
+        }
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  // Local compression service: an HTTP server on the loopback interface.
+  //   POST /compress?format=obj takes a model and answers with its .CoToS.
+  //   POST /decompress?format=obj takes a .CoToS and answers with the model.
+  //   GET /stats reports the job counters, throughput and latencies as JSON.
+  // Jobs may pass strategy and partitions as well. At most WORKERS jobs run at once and up to
+  // QUEUE more wait for a worker. Any further job is turned away at once with 503 and a
+  // Retry-After header, before its body is read, so memory stays bounded under load.
+  private static class Service {
+    private static final int PORT = 7880;
+    private static final int WORKERS =
+        Integer.getInteger("tocos.workers", Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE = Integer.getInteger("tocos.queue", WORKERS * 2);
+    // Largest request body, in megabytes. Every admitted job buffers its body, by default they
+    // take at most a quarter of the heap together.
+    private static final long MAX_REQUEST =
+        Long.getLong(
+                "tocos.maxRequestMb",
+                Math.max(1, Runtime.getRuntime().maxMemory() / 4 / (WORKERS + QUEUE) >> 20))
+            << 20;
+    // Threads beyond the admitted jobs, which turn away the others and answer /stats.
+    private static final int SPARE_THREADS = 2;
+
+    private final Engine engine = new Engine();
+    // Permits for the running and the waiting jobs, and for the running ones alone.
+    private final Semaphore admitted = new Semaphore(WORKERS + QUEUE);
+    private final Semaphore running = new Semaphore(WORKERS);
+
+    private final long started = System.nanoTime();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong triangles = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final Latencies compressLatencies = new Latencies();
+    private final Latencies decompressLatencies = new Latencies();
+
+    public static void serve(int port) throws IOException {
+      Service service = new Service();
+      HttpServer server =
+          HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+      server.createContext("/compress", exchange -> service.job(exchange, true));
+      server.createContext("/decompress", exchange -> service.job(exchange, false));
+      server.createContext("/stats", service::stats);
+      // An admitted job holds its thread until it is answered, the spare threads keep turning
+      // away the others meanwhile.
+      server.setExecutor(
+          Executors.newFixedThreadPool(
+              WORKERS + QUEUE + SPARE_THREADS,
+              r -> {
+                Thread t = new Thread(r, "tocos-service");
+                t.setDaemon(true);
+                return t;
+              }));
+      server.start();
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+
+      System.out.println(
+          "Serving on http://"
+              + server.getAddress().getHostString()
+              + ":"
+              + server.getAddress().getPort()
+              + " with "
+              + WORKERS
+              + " workers and a queue of "
+              + QUEUE
+              + ", requests up to "
+              + (MAX_REQUEST >> 20)
+              + " MB.");
+    }
+
+    private void job(HttpExchange exchange, boolean compress) throws IOException {
+      try {
+        if (!exchange.getRequestMethod().equals("POST")) {
+          respond(exchange, 405, "Use POST.\n");
+          return;
+        }
+
+        if (!admitted.tryAcquire()) {
+          rejected.incrementAndGet();
+          exchange.getResponseHeaders().set("Retry-After", "1");
+          respond(exchange, 503, "Busy, retry later.\n");
+          return;
+        }
+
+        try {
+          accepted.incrementAndGet();
+          running.acquireUninterruptibly();
+
+          try {
+            run(exchange, compress);
+          } finally {
+            running.release();
+          }
+        } finally {
+          admitted.release();
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void run(HttpExchange exchange, boolean compress) throws IOException {
+      long start = System.nanoTime();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      String format = query.get("format");
+      byte[] body;
+      byte[] result;
+
+      try {
+        if (format == null) {
+          throw new IllegalArgumentException("The format parameter is missing.");
+        }
+
+        Options options = Options.DEFAULT;
+
+        if (query.containsKey("strategy")) {
+          options = options.withStrategy(query.get("strategy"));
+        }
+        if (query.containsKey("partitions")) {
+          options = options.withPartitions(Integer.parseInt(query.get("partitions")));
+        }
+
+        // The length header may be missing or wrong, the body itself is counted.
+        body = new LimitedInputStream(exchange.getRequestBody(), MAX_REQUEST).readAllBytes();
+
+        Stats stats = new Stats(exchange.getRequestURI().toString());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (compress) {
+          engine.compress(ByteBuffer.wrap(body), format, out, options, stats);
+        } else {
+          engine.decompress(new ByteArrayInputStream(body), format, out, options, stats);
+        }
+
+        result = out.toByteArray();
+
+        stats.count("bytesIn", body.length);
+        stats.count("bytesOut", result.length);
+        stats.report();
+
+        triangles.addAndGet(stats.counter(compress ? "trianglesBefore" : "trianglesAfter"));
+      } catch (RequestTooLargeException e) {
+        failed.incrementAndGet();
+        respond(exchange, 413, e.getMessage() + "\n");
+        return;
+      } catch (IOException | RuntimeException e) {
+        // The body is in memory, so these come from an invalid model or parameter.
+        failed.incrementAndGet();
+        respond(exchange, 400, (e.getMessage() != null ? e.getMessage() : e.toString()) + "\n");
+        return;
+      } catch (OutOfMemoryError e) {
+        // Only this job's arrays were reachable from it, the other jobs go on.
+        failed.incrementAndGet();
+        respond(exchange, 500, "The model is too large to process.\n");
+        return;
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+      exchange.sendResponseHeaders(200, result.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(result);
+      }
+
+      completed.incrementAndGet();
+      bytesIn.addAndGet(body.length);
+      bytesOut.addAndGet(result.length);
+      (compress ? compressLatencies : decompressLatencies).add(System.nanoTime() - start);
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+      try {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        int inFlight = WORKERS - running.availablePermits();
+
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"uptimeS\":").append(seconds);
+        json.append(",\"workers\":").append(WORKERS);
+        json.append(",\"queue\":").append(QUEUE);
+        json.append(",\"running\":").append(inFlight);
+        json.append(",\"waiting\":")
+            .append(WORKERS + QUEUE - admitted.availablePermits() - inFlight);
+        json.append(",\"accepted\":").append(accepted.get());
+        json.append(",\"rejected\":").append(rejected.get());
+        json.append(",\"completed\":").append(completed.get());
+        json.append(",\"failed\":").append(failed.get());
+        json.append(",\"jobsPerS\":").append(completed.get() / seconds);
+        json.append(",\"trianglesPerS\":").append(triangles.get() / seconds);
+        json.append(",\"bytesIn\":").append(bytesIn.get());
+        json.append(",\"bytesOut\":").append(bytesOut.get());
+        json.append(",\"compress\":");
+        compressLatencies.toJson(json);
+        json.append(",\"decompress\":");
+        decompressLatencies.toJson(json);
+        json.append("}\n");
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        respond(exchange, 200, json.toString());
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String text) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+      exchange.sendResponseHeaders(code, bytes.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    private static class RequestTooLargeException extends IOException {
+      private static final long serialVersionUID = 1L;
+
+      RequestTooLargeException(long limit) {
+        super("The request is larger than " + (limit >> 20) + " MB.");
+      }
+    }
+
+    // Fails as soon as more than limit bytes were read.
+    private static class LimitedInputStream extends FilterInputStream {
+      private final long limit;
+      private long count = 0;
+
+      LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+
+        if (b != -1) {
+          count(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+
+        if (n > 0) {
+          count(n);
+        }
+        return n;
+      }
+
+      private void count(int n) throws IOException {
+        count += n;
+
+        if (count > limit) {
+          throw new RequestTooLargeException(limit);
+        }
+      }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+      Map<String, String> parameters = new HashMap<>();
+
+      if (query != null) {
+        for (String parameter : query.split("&")) {
+          int eq = parameter.indexOf('=');
+
+          if (eq > 0) {
+            parameters.put(
+                URLDecoder.decode(parameter.substring(0, eq), StandardCharsets.UTF_8),
+                URLDecoder.decode(parameter.substring(eq + 1), StandardCharsets.UTF_8));
+          }
+        }
+      }
+
+      return parameters;
+    }
+  }
+
+  // Latencies of the most recent jobs, for the percentiles of the service statistics.
+  private static class Latencies {
+    private final long[] recent = new long[1024];
+    private long count = 0;
+
+    public synchronized void add(long nanos) {
+      recent[(int) (count++ % recent.length)] = nanos;
+    }
+
+    public void toJson(StringBuilder json) {
+      long[] sorted;
+      long n;
+
+      synchronized (this) {
+        n = count;
+        sorted = Arrays.copyOf(recent, (int) Math.min(count, recent.length));
+      }
+
+      Arrays.sort(sorted);
+
+      json.append("{\"count\":").append(n);
+
+      if (sorted.length > 0) {
+        json.append(",\"p50Ms\":").append(sorted[(sorted.length - 1) / 2] / 1e6);
+        json.append(",\"p90Ms\":").append(sorted[(sorted.length - 1) * 9 / 10] / 1e6);
+        json.append(",\"p99Ms\":").append(sorted[(sorted.length - 1) * 99 / 100] / 1e6);
+        json.append(",\"maxMs\":").append(sorted[sorted.length - 1] / 1e6);
+      }
+
+      json.append('}');
+    }
+  }
+
+
+  public static Obj3d opt2full(Obj3d obj, Options options, ScratchPool pool, Stats stats)
+      throws IOException {
+    Scratch scratch = pool.acquire();
+
+    try {
+      return opt2full(obj, options, scratch, stats);
+    } finally {
+      pool.release(scratch);
+    }
+  }
+
+  private static Obj3d opt2full(Obj3d obj, Options options, Scratch scratch, Stats stats)
+      throws IOException {
+    MeshSink rec = new MeshSink();
+
+    restore(obj, options, scratch, stats, rec);
+
+    return rec.mesh;
+  }
+
+  // Restores the meshes one after the other into the sink, each one concurrently, and lets go of
+  // every decimated mesh once it is written.
+  private static void restore(
+      List<Obj3d> decimated, TriangleSink sink, Options options, ScratchPool pool, Stats stats)
+      throws IOException {
+    for (int i = 0; i < decimated.size(); i++) {
+      Obj3d obj = decimated.set(i, null);
+      Stats meshStats = stats.mesh(obj.name.isEmpty() ? "mesh" + i : obj.name);
+      Scratch scratch = pool.acquire();
+
+      try {
+        restore(obj, options, scratch, meshStats, sink);
+      } finally {
+        pool.release(scratch);
+      }
+    }
+  }
+
+  // Refilled triangles are handed to the sink in batches of this many.
+  private static final int SINK_BATCH = 4096;
+
+  // Restores the optimized triangular mesh into the sink: its kept triangles as soon as the
+  // boundary is known, then the refilled ones in batches while the holes are merged.
+  @SuppressWarnings("try")
+  private static void restore(
+      Obj3d obj, Options options, Scratch scratch, Stats stats, TriangleSink sink)
+      throws IOException {
+    HalfEdgeMesh mesh;
+
+    try (Stats.Timer t = stats.time("topology")) {
+      mesh =
+          new HalfEdgeMesh(
+              obj.vertices, obj.numVertices, obj.faces, obj.numFaces, false, scratch);
+    }
+
+    Stats.Timer timer = stats.time("reconstruct");
+    ReconstructEvent event = new ReconstructEvent();
+    event.begin();
+
+    // Collect the edges which lost a triangle, and the ones touching every vertex.
+    int numHalfEdges = obj.numFaces * 3;
+    int numBoundary = 0;
+    int[] offsets = scratch.clearedInts(Scratch.BOUNDARY_OFFSETS, obj.numVertices + 1);
+
+    for (int h = 0; h < numHalfEdges; h++) {
+      if (mesh.twin[h] == -1) {
+        numBoundary++;
+        offsets[mesh.origin(h) + 1]++;
+        offsets[mesh.target(h) + 1]++;
+      }
+    }
+
+    for (int v = 0; v < obj.numVertices; v++) {
+      offsets[v + 1] += offsets[v];
+    }
+
+    int[] boundary = scratch.ints(Scratch.BOUNDARY, numBoundary * 2);
+    int[] fill = scratch.ints(Scratch.FILL, obj.numVertices);
+    System.arraycopy(offsets, 0, fill, 0, obj.numVertices);
+    EdgeTable edges = new EdgeTable(numBoundary, scratch);
+
+    for (int h = 0; h < numHalfEdges; h++) {
+      if (mesh.twin[h] == -1) {
+        boundary[fill[mesh.origin(h)]++] = h;
+        boundary[fill[mesh.target(h)]++] = h;
+        edges.put(mesh.origin(h), mesh.target(h), h);
+      }
+    }
+
+    // Every hole left three boundary edges behind.
+    sink.begin(obj.name, obj.vertices, obj.numVertices, obj.numFaces + numBoundary / 3);
+    sink.triangles(obj.faces, 0, obj.numFaces);
+
+    // Find the hole next to every boundary edge, independently of the others.
+    long[] holes = scratch.longs(Scratch.HOLES, numHalfEdges);
+
+    IntStream boundaryEdges = IntStream.range(0, numHalfEdges);
+
+    if (options.parallelReconstruction && numHalfEdges >= Nodify3d.PARALLEL_THRESHOLD) {
+      boundaryEdges = boundaryEdges.parallel();
+    }
+
+    boundaryEdges.forEach(
+        h -> {
+          holes[h] = mesh.twin[h] == -1 ? findHole(mesh, offsets, boundary, edges, null, h) : -1;
+        });
+
+    // Merge in the order of the edges, so the result does not depend on the threads. A hole which
+    // shares an edge with an already filled one is searched again, as the sequential walk would.
+    boolean[] filled = scratch.clearedFlags(Scratch.FILLED, numHalfEdges);
+    long searchedAgain = 0;
+    int refilled = 0;
+    int[] batch = new int[SINK_BATCH * 3];
+    int numBatched = 0;
+
+    for (int h = 0; h < numHalfEdges; h++) {
+
+      if (mesh.twin[h] != -1 || filled[h]) {
+        continue;
+      }
+
+      long hole = holes[h];
+
+      if (hole != -1 && (filled[(int) (hole >>> 32)] || filled[(int) hole])) {
+        searchedAgain++;
+        hole = findHole(mesh, offsets, boundary, edges, filled, h);
+      }
+
+      if (hole == -1) {
+        continue;
+      }
+
+      int g = (int) (hole >>> 32);
+      int k = (int) hole;
+
+      int u = mesh.origin(h);
+      int v = mesh.target(h);
+      int w = thirdVertex(mesh, g, u, v);
+      boolean flip = isFlipped(mesh, g, k, u, v, w);
+
+      batch[numBatched * 3] = flip ? u : v;
+      batch[numBatched * 3 + 1] = flip ? v : u;
+      batch[numBatched * 3 + 2] = w;
+      refilled++;
+
+      if (++numBatched == SINK_BATCH) {
+        sink.triangles(batch, 0, numBatched);
+        numBatched = 0;
+      }
+
+      filled[h] = true;
+      filled[g] = true;
+      filled[k] = true;
+    }
+
+    sink.triangles(batch, 0, numBatched);
+    sink.end();
+
+    int s = 0;
+    for (int h = 0; h < numHalfEdges; h++) {
+      if (mesh.twin[h] == -1 && !filled[h]) {
+        s++;
+      }
+    }
+
+    // Kept triangles with no hole next to them. An in-memory pass only keeps those when they are
+    // edge cases or lie on a seam between patches, out of core also at chunk borders, which later
+    // levels remove. A triangle which borders a hole is never removable, it holds an edge that
+    // the hole is found by.
+    int keptInterior = 0;
+    for (int t = 0; t < obj.numFaces; t++) {
+      if (mesh.twin[t * 3] != -1 && mesh.twin[t * 3 + 1] != -1 && mesh.twin[t * 3 + 2] != -1) {
+        keptInterior++;
+      }
+    }
+
+    timer.close();
+
+    event.end();
+    if (event.shouldCommit()) {
+      event.mesh = obj.name;
+      event.holesRefilled = refilled;
+      event.problematicEdges = s;
+      event.commit();
+    }
+
+    stats.count("trianglesBefore", obj.numFaces);
+    stats.count("trianglesAfter", obj.numFaces + refilled);
+    stats.count("holesRefilled", refilled);
+    stats.count("holesSearchedAgain", searchedAgain);
+    stats.count("problematicEdges", s);
+    stats.count("keptInterior", keptInterior);
+  }
+
+  // Returns the other two boundary edges g and k, packed as g << 32 | k, of the hole next to the
+  // boundary edge h, or -1. Edges already filled are skipped, unless filled is null.
+  private static long findHole(
+      HalfEdgeMesh mesh, int[] offsets, int[] boundary, EdgeTable edges, boolean[] filled, int h) {
+    int u = mesh.origin(h);
+    int v = mesh.target(h);
+
+    // Every removed triangle left three boundary edges behind. Walk the boundary edges of the
+    // endpoint which has fewer of them, the one whose far end closes the cycle is the hole.
+    int a = u;
+    int b = v;
+
+    if (offsets[u + 1] - offsets[u] > offsets[v + 1] - offsets[v]) {
+      a = v;
+      b = u;
+    }
+
+    for (int i = offsets[a]; i < offsets[a + 1]; i++) {
+      int g = boundary[i];
+
+      if (g == h || (filled != null && filled[g])) {
+        continue;
+      }
+
+      int w = mesh.origin(g) == a ? mesh.target(g) : mesh.origin(g);
+      int k = edges.get(b, w);
+
+      if (k == -1 || (filled != null && filled[k])) {
+        continue;
+      }
+
+      // Ignore existing triangles.
+      if (g / 3 == h / 3 && k / 3 == h / 3) {
+        continue;
+      }
+
+      return ((long) g << 32) | k;
+    }
+
+    return -1;
+  }
+
+  private static int thirdVertex(HalfEdgeMesh mesh, int g, int u, int v) {
+    int w = mesh.origin(g);
+    return w == u || w == v ? mesh.target(g) : w;
+  }
+
+  // Whether the hole with the boundary edges h (u, v), g and k winds (u, v, w) rather than
+  // (v, u, w). A kept triangle runs its half-edge against the hole next to it, so the winding
+  // follows from the directions of the boundary edges, the way the directed edges of the original
+  // ITri kept it. On a consistently oriented mesh the three agree, otherwise g and k outvote h.
+  private static boolean isFlipped(HalfEdgeMesh mesh, int g, int k, int u, int v, int w) {
+    return !runsAgainst(mesh, g, v, u, w) && !runsAgainst(mesh, k, v, u, w);
+  }
+
+  // Whether the half-edge g runs against an edge of the triangle (a, b, c).
+  private static boolean runsAgainst(HalfEdgeMesh mesh, int g, int a, int b, int c) {
+    int o = mesh.origin(g);
+    int t = mesh.target(g);
+
+    return (o == b && t == a) || (o == c && t == b) || (o == a && t == c);
+  }
+
+  // Order independent hash of the triangles of a mesh, the sum of a mixed key of every triangle,
+  // so it is computed concurrently and repeated triangles count. Unoriented, the corners are
+  // sorted like the edges of the original ITri, oriented, the triangle is rotated to start at its
+  // smallest corner.
+  private static long triangleSetHash(Obj3d obj, boolean oriented) {
+    IntStream tris = IntStream.range(0, obj.numFaces);
+
+    if (obj.numFaces * 3 >= Nodify3d.PARALLEL_THRESHOLD) {
+      tris = tris.parallel();
+    }
+
+    int[] f = obj.faces;
+
+    return tris.mapToLong(
+            t -> {
+              int a = f[t * 3];
+              int b = f[t * 3 + 1];
+              int c = f[t * 3 + 2];
+
+              if (oriented) {
+                return b < a && b < c ? triangleKey(b, c, a)
+                    : c < a && c < b ? triangleKey(c, a, b)
+                    : triangleKey(a, b, c);
+              }
+
+              return triangleKey(
+                  Math.min(a, Math.min(b, c)),
+                  Math.max(Math.min(a, b), Math.min(Math.max(a, b), c)),
+                  Math.max(a, Math.max(b, c)));
+            })
+        .sum();
+  }
+
+  private static long triangleKey(int a, int b, int c) {
+    return mix(mix(mix(a) + b) + c);
+  }
+
+  // The SplitMix64 finalizer.
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static final String ext = "CoToS";
+
+  private static void printUsage() {
+    System.out.println(
+        "Compress: c input.[obj|stl|...any assimp supported format]. Example: c sphere.obj (will compress sphere.obj in to sphere.obj.CoToS)");
+    System.out.println("Decompress: d input.[obj|stl|...any assimp supported format].CoToS");
+    System.out.println(
+        "Batch: b c|d [directory|glob pattern|@file list]... Example: b c models (will compress every model in the models directory)");
+    System.out.println(
+        "Verify: v [input|directory|glob pattern|@file list]... Example: v sphere.obj (will compress and decompress sphere.obj in memory and compare the triangles)");
+    System.out.println(
+        "Serve: s [port]. Example: s 7880 (will compress and decompress models posted to http://127.0.0.1:7880/compress?format=obj and /decompress?format=obj)");
+  }
+
+  public static void main(String[] args) {
+
+    if (args.length >= 3
+        && args[0].equals("b")
+        && (args[1].equals("c") || args[1].equals("d"))) {
+      // Batch.
+      try {
+        if (!batch(args[1], Arrays.asList(args).subList(2, args.length))) {
+          System.exit(1);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    } else if (args.length >= 2 && args[0].equals("v")) {
+      // Verify.
+      try {
+        if (!verify(Arrays.asList(args).subList(1, args.length))) {
+          System.exit(1);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    } else if (args.length >= 1 && args.length <= 2 && args[0].equals("s")) {
+      // Serve.
+      try {
+        Service.serve(args.length == 2 ? Integer.parseInt(args[1]) : Service.PORT);
+      } catch (NumberFormatException e) {
+        printUsage();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else if (args.length != 2) {
+      printUsage();
+    } else if (args[0].equals("c")) {
       // Compress.
       try {
         compress(args[1]);
@@ -752,65 +4238,441 @@ public class ToCoS {
     }
 
     File srcFile = new File(src);
+    File renamedFile = decompressedFile(srcFile);
+    Stats stats = new Stats(srcFile.getPath());
+
+    // Parse the compressed file once, restore it in memory and export the result.
+    List<Obj3d> decimated = read(false, srcFile, stats);
+    String format = FilenameUtils.getExtension(renamedFile.getName());
+
+    // Or write obj and stl files while the holes are still being filled.
+    if (Options.DEFAULT.streaming && format.equalsIgnoreCase("stl")) {
+      try (StlSink sink = new StlSink(renamedFile)) {
+        restore(decimated, sink, Options.DEFAULT, SCRATCH, stats);
+      }
+    } else if (Options.DEFAULT.streaming && format.equalsIgnoreCase("obj")) {
+      try (ObjSink sink = new ObjSink(new FileOutputStream(renamedFile))) {
+        restore(decimated, sink, Options.DEFAULT, SCRATCH, stats);
+      }
+    } else {
+      write(false, process(false, srcFile, decimated, stats), renamedFile, stats);
+    }
+
+    report(srcFile, renamedFile, stats);
+  }
+
+  private static File decompressedFile(File srcFile) {
+    return new File(srcFile.getParentFile(), FilenameUtils.getBaseName(srcFile.getName()));
+  }
+
+  // Files written before the native container hold the decimated mesh in the target format.
+  @SuppressWarnings("try")
+  private static List<Obj3d> readCompressed(File srcFile, Stats stats) throws IOException {
+    if (!CoToSFile.isCoToS(srcFile)) {
+      return Obj3d.readMeshes(
+          srcFile,
+          FilenameUtils.getExtension(decompressedFile(srcFile).getName()),
+          Options.DEFAULT,
+          stats);
+    }
 
-    File renamedFile =
-        new File(srcFile.getParentFile(), FilenameUtils.getBaseName(srcFile.getName()));
+    try (Stats.Timer t = stats.time("read")) {
+      return CoToSFile.read(srcFile);
+    }
+  }
 
-    File renamedFileTmp =
-        new File(
-            srcFile.getParentFile(),
-            FilenameUtils.getBaseName(renamedFile.getName())
-                + "_tmp."
-                + FilenameUtils.getExtension(renamedFile.getName()));
+  private static void compress(String src) throws IOException {
+    File srcFile = new File(src);
+    File cotos = compressedFile(srcFile);
+    Stats stats = new Stats(srcFile.getPath());
 
-    FileUtils.copyFile(srcFile, renamedFile);
+    if (Options.DEFAULT.outOfCore) {
+      compressOutOfCore(srcFile, cotos, stats);
+      report(srcFile, cotos, stats);
+      return;
+    }
 
-    opt2full(renamedFile, renamedFileTmp);
+    // Optimize the mesh.
+    List<Obj3d> decimated = process(true, srcFile, read(true, srcFile, stats), stats);
 
-    Obj3d obj3d = Obj3d.read(renamedFileTmp);
+    // The source format is kept in the name, decompression exports to it.
+    write(true, decimated, cotos, stats);
 
-    renamedFile.delete();
+    report(srcFile, cotos, stats);
+  }
 
-    obj2target(obj3d, renamedFile);
+  private static Void compressOutOfCore(File src, File cotos, Stats stats) throws IOException {
+    if (!FilenameUtils.getExtension(src.getName()).equalsIgnoreCase("tbin")) {
+      throw new IOException("Out-of-core compression reads indexed .tbin files: " + src);
+    }
 
-    renamedFileTmp.delete();
+    OutOfCore.compress(src, cotos, Options.DEFAULT, stats);
+    return null;
   }
 
-  private static void compress(String src) throws IOException {
-    // Optimize and dump the mesh.
-    File triangleDump = triOptStack(new File(src));
+  // Verify mode: every mesh is decimated and restored in memory, on the same welded vertex ids, and
+  // the triangle sets of the input and the result are compared by their hashes. Nothing is
+  // written, and the .CoToS coding, which only quantizes the vertices, is not part of the check.
+  // Returns whether every file survived the round trip.
+  private static boolean verify(List<String> args) throws IOException {
+    Set<File> files = new LinkedHashSet<>();
+
+    for (String arg : args) {
+      collect("c", arg, files);
+    }
+
+    Options options = Options.DEFAULT.withDump(false);
+    int numDiffering = 0;
+    int numFailed = 0;
+
+    for (File file : files) {
+      Stats stats = new Stats(file.getPath());
+
+      try {
+        List<Obj3d> objs = Obj3d.readMeshes(file, options, stats);
+
+        forEachMesh(objs, stats, (obj, i, meshStats) -> verify(obj, options, meshStats));
+      } catch (IOException e) {
+        numFailed++;
+        System.out.println("Failed " + file + ": " + e.getMessage());
+        continue;
+      }
+
+      long lost = stats.counter("meshesDiffering");
+      long flipped = stats.counter("meshesFlipped");
+
+      if (lost > 0 || flipped > 0) {
+        numDiffering++;
+      }
+
+      stats.report();
+      System.out.println(
+          (lost > 0 ? "MISMATCH " : flipped > 0 ? "FLIPPED " : "OK ")
+              + file
+              + ": "
+              + stats.counter("trianglesBefore")
+              + " triangles, "
+              + lost
+              + " meshes differ, "
+              + flipped
+              + " meshes with flipped triangles.");
+    }
+
+    System.out.println(
+        "Files: "
+            + (files.size() - numDiffering - numFailed)
+            + " verified, "
+            + numDiffering
+            + " differ, "
+            + numFailed
+            + " failed.");
+
+    return numDiffering == 0 && numFailed == 0;
+  }
+
+  @SuppressWarnings("try")
+  private static Obj3d verify(Obj3d input, Options options, Stats stats) throws IOException {
+    Obj3d obj = options.reorder ? reorder(input, stats) : input;
+    Scratch scratch = SCRATCH.acquire();
+    Obj3d rec;
+
+    try {
+      HalfEdgeMesh mesh;
+
+      try (Stats.Timer t = stats.time("topology")) {
+        mesh =
+            new HalfEdgeMesh(
+                obj.vertices, obj.getNumVertices(), obj.faces, obj.getNumFaces(), scratch);
+      }
+
+      Obj3d decimated = triOpStack(mesh, obj.name, options, scratch, stats);
+
+      // The restored mesh would count the triangles again, keep the counters of the input.
+      Stats restored = new Stats(obj.name);
+
+      try (Stats.Timer t = stats.time("restore")) {
+        rec = opt2full(decimated, options, scratch, restored);
+      }
+
+      stats.count("problematicEdges", restored.counter("problematicEdges"));
+    } finally {
+      SCRATCH.release(scratch);
+    }
+
+    try (Stats.Timer t = stats.time("verify")) {
+      boolean same =
+          obj.numFaces == rec.numFaces
+              && triangleSetHash(obj, false) == triangleSetHash(rec, false);
+      boolean oriented = same && triangleSetHash(obj, true) == triangleSetHash(rec, true);
+
+      stats.count("meshesDiffering", same ? 0 : 1);
+      stats.count("meshesFlipped", same && !oriented ? 1 : 0);
+    }
+
+    return rec;
+  }
+
+  private static void report(File srcFile, File target, Stats stats) throws IOException {
+    stats.count("bytesIn", srcFile.length());
+    stats.count("bytesOut", target.length());
+    stats.report();
+  }
+
+  private static File compressedFile(File srcFile) {
+    return new File(srcFile.getParentFile(), srcFile.getName() + "." + ext);
+  }
+
+  // Batch mode: every file named by the arguments runs through the read, process and write stages
+  // of a pipeline. Reading and writing run on I/O threads, processing on the common pool, and at
+  // most two files per processor are in flight at once.
+  // Returns whether every file was processed.
+  private static boolean batch(String mode, List<String> args) throws IOException {
+    // Arguments may overlap, every file is processed once.
+    Set<File> files = new LinkedHashSet<>();
+
+    for (String arg : args) {
+      collect(mode, arg, files);
+    }
+
+    boolean compress = mode.equals("c");
+    // Out-of-core files are compressed one at a time, so the heap only holds one chunk.
+    boolean outOfCore = compress && Options.DEFAULT.outOfCore;
+    int workers = Runtime.getRuntime().availableProcessors();
+    Semaphore inFlight = new Semaphore(outOfCore ? 1 : workers * 2);
+    ExecutorService io = newIoExecutor(workers);
+
+    AtomicLong numDone = new AtomicLong();
+    AtomicLong numFailed = new AtomicLong();
+    AtomicLong bytesIn = new AtomicLong();
+    AtomicLong bytesOut = new AtomicLong();
+    AtomicLong trianglesIn = new AtomicLong();
+    AtomicLong trianglesOut = new AtomicLong();
+    AtomicLong reportFailures = new AtomicLong();
+
+    long start = System.nanoTime();
+    List<CompletableFuture<Void>> jobs = new ArrayList<>();
+
+    try {
+      for (File file : files) {
+        inFlight.acquireUninterruptibly();
+
+        File target = compress ? compressedFile(file) : decompressedFile(file);
+        Stats stats = new Stats(file.getPath());
+
+        CompletableFuture<Void> pipeline =
+            outOfCore
+                ? CompletableFuture.supplyAsync(
+                    unchecked(() -> compressOutOfCore(file, target, stats)), io)
+                : CompletableFuture.supplyAsync(unchecked(() -> read(compress, file, stats)), io)
+                    .thenApplyAsync(
+                        objs -> unchecked(() -> process(compress, file, objs, stats)).get(),
+                        ForkJoinPool.commonPool())
+                    .thenAcceptAsync(
+                        objs -> unchecked(() -> write(compress, objs, target, stats)).get(), io);
+        CompletableFuture<Void> job =
+            pipeline.whenComplete(
+                (result, e) -> {
+                  if (e == null) {
+                    numDone.incrementAndGet();
+                    bytesIn.addAndGet(file.length());
+                    bytesOut.addAndGet(target.length());
+                    trianglesIn.addAndGet(stats.counter("trianglesBefore"));
+                    trianglesOut.addAndGet(stats.counter("trianglesAfter"));
+
+                    try {
+                      report(file, target, stats);
+                    } catch (IOException r) {
+                      reportFailures.incrementAndGet();
+                    }
+                  } else {
+                    numFailed.incrementAndGet();
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    cause = cause instanceof UncheckedIOException ? cause.getCause() : cause;
+                    System.out.println("Failed " + file + ": " + cause.getMessage());
+                  }
+                  inFlight.release();
+                });
+
+        jobs.add(job);
+      }
+
+      CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0]))
+          .handle((result, e) -> null)
+          .join();
+    } finally {
+      io.shutdown();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println("Files: " + numDone + " done, " + numFailed + " failed.");
+
+    if (reportFailures.get() > 0) {
+      System.out.println("Failed to write " + reportFailures + " reports to " + REPORT + ".");
+    }
+    System.out.println(
+        "Triangles before: " + trianglesIn + ", triangles after: " + trianglesOut + ".");
+    System.out.println(
+        "Bytes before: "
+            + bytesIn
+            + ", bytes after: "
+            + bytesOut
+            + (bytesIn.get() > 0 ? ", ratio: " + (double) bytesOut.get() / bytesIn.get() : "")
+            + ".");
+    System.out.println(
+        "Time: " + seconds + " s, " + (numDone.get() + numFailed.get()) / seconds + " files/s.");
+
+    return numFailed.get() == 0;
+  }
+
+  private static List<Obj3d> read(boolean compress, File file, Stats stats) throws IOException {
+    return compress
+        ? Obj3d.readMeshes(file, Options.DEFAULT, stats)
+        : readCompressed(file, stats);
+  }
+
+  private static List<Obj3d> process(boolean compress, File file, List<Obj3d> objs, Stats stats)
+      throws IOException {
+    return compress
+        ? decimate(
+            objs, FilenameUtils.getBaseName(file.getName()), Options.DEFAULT, SCRATCH, stats)
+        : forEachMesh(
+            objs,
+            stats,
+            (obj, i, meshStats) -> opt2full(obj, Options.DEFAULT, SCRATCH, meshStats));
+  }
+
+  @SuppressWarnings("try")
+  private static Void write(boolean compress, List<Obj3d> objs, File target, Stats stats)
+      throws IOException {
+    if (compress) {
+      try (Stats.Timer t = stats.time("write")) {
+        CoToSFile.write(objs, target, Options.DEFAULT);
+      }
+    } else {
+      String format = FilenameUtils.getExtension(target.getName());
+
+      try (Stats.Timer t = stats.time("export")) {
+        if (format.equalsIgnoreCase("tbin") && objs.size() == 1) {
+          TBin.write(objs.get(0), target);
+        } else {
+          Obj3d.saveAs(objs, format, target);
+        }
+      }
+    }
+    return null;
+  }
+
+  // Adds the files named by a batch argument: a directory (searched recursively), a glob pattern,
+  // a list file prefixed with @ or a single file.
+  private static void collect(String mode, String arg, Set<File> files) throws IOException {
+    if (arg.startsWith("@")) {
+      for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+        if (!line.trim().isEmpty()) {
+          collect(mode, line.trim(), files);
+        }
+      }
+      return;
+    }
+
+    Path path = Paths.get(arg);
+    PathMatcher matcher = null;
+
+    if (arg.matches(".*[*?\\[{].*")) {
+      // Walk from the longest directory without wildcards.
+      Path base = Paths.get("");
+
+      for (Path part : path) {
+        if (part.toString().matches(".*[*?\\[{].*")) {
+          break;
+        }
+        base = base.resolve(part);
+      }
+
+      if (path.isAbsolute()) {
+        base = path.getRoot().resolve(base);
+      }
+
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+      path = base;
+    } else if (!Files.isDirectory(path)) {
+      files.add(path.normalize().toFile());
+      return;
+    }
+
+    PathMatcher glob = matcher;
 
-    // Convert optimized mesh to obj.
-    File objDecimated =
-        new File(
-            triangleDump.getParentFile(),
-            FilenameUtils.getBaseName(triangleDump.getName()) + ".obj");
+    try (Stream<Path> walk = Files.walk(path)) {
+      walk.filter(Files::isRegularFile)
+          .filter(p -> glob == null ? isBatchInput(mode, p) : glob.matches(p))
+          .sorted()
+          .forEach(p -> files.add(p.normalize().toFile()));
+    }
+  }
 
-    tbinToObj(triangleDump, objDecimated);
+  private static boolean isBatchInput(String mode, Path path) {
+    String name = path.getFileName().toString();
 
-    Obj3d decimatedObj3d = Obj3d.read(objDecimated);
+    if (mode.equals("c") && Options.DEFAULT.outOfCore) {
+      return FilenameUtils.getExtension(name).equalsIgnoreCase("tbin");
+    } else if (mode.equals("c")) {
+      return !name.endsWith(ext)
+          && (FilenameUtils.getExtension(name).equalsIgnoreCase("tbin")
+              || Assimp.aiIsExtensionSupported("." + FilenameUtils.getExtension(name)));
+    }
 
-    String format = FilenameUtils.getExtension(src);
+    return name.endsWith(ext);
+  }
 
-    // Save decimated to stl and ply.
-    File targetDecimated =
-        new File(
-            new File(src).getParentFile(),
-            FilenameUtils.getBaseName(triangleDump.getName()) + "." + format);
+  // Releases a mapping right away instead of when the buffer is collected, Windows neither deletes
+  // nor truncates a mapped file. The buffer and its views must not be used afterwards.
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+      Field instance = unsafe.getDeclaredField("theUnsafe");
+
+      instance.setAccessible(true);
+      unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(instance.get(null), buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // The mapping is released by the garbage collector.
+    }
+  }
 
-    obj2target(decimatedObj3d, targetDecimated);
+  // Deletes a scratch file, or once the JVM exits when it is still in use.
+  private static void deleteScratch(File file) {
+    if (file.exists() && !file.delete()) {
+      file.deleteOnExit();
+      System.err.println("Could not delete " + file + ", it is deleted on exit.");
+    }
+  }
 
-    File cotos =
-        new File(
-            new File(src).getParentFile(),
-            FilenameUtils.getBaseName(triangleDump.getName()).replace("_decimated", "")
-                + "."
-                + format
-                + "."
-                + ext);
+  // Virtual threads when the runtime has them, a fixed pool of platform threads otherwise.
+  private static ExecutorService newIoExecutor(int workers) {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(
+          workers * 2,
+          r -> {
+            Thread t = new Thread(r, "tocos-io");
+            t.setDaemon(true);
+            return t;
+          });
+    }
+  }
 
-    targetDecimated.renameTo(cotos);
+  private interface IoSupplier<T> {
+    T get() throws IOException;
+  }
 
-    objDecimated.delete();
+  private static <T> Supplier<T> unchecked(IoSupplier<T> supplier) {
+    return () -> {
+      try {
+        return supplier.get();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
   }
 }